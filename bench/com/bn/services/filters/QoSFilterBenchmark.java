@@ -0,0 +1,241 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.bn.services.filters.Stubs.StubSuspender;
+
+/**
+ * Benchmarks of the QoSFilter hot paths, driven through stub suspensions so that no container is involved
+ * @author Chris Winberry | chris@winberry.net
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QoSFilterBenchmark
+{
+
+    // Creates a filter backed by stub suspensions that never waits for a slot
+    static QoSFilter createFilter(Map<String,String> params) throws ServletException
+    {
+        Map<String,String> config = new HashMap<String,String>(params);
+        config.put("suspension",StubSuspender.class.getName());
+        config.put("locktimeout","0");
+        QoSFilter filter = new QoSFilter();
+        filter.init(Stubs.filterConfig(config));
+        return filter;
+    }
+
+    /**
+     * Priority calculation for a range of query strings
+     */
+    @State(Scope.Thread)
+    public static class PriorityState
+    {
+
+        @Param( { "", "priority=3", "a=1&b=two&c=3&priority=4", "priority=99" })
+        public String query;
+
+        QoSFilter filter;
+        HttpServletRequest request;
+
+        @Setup
+        public void setup() throws ServletException
+        {
+            filter = createFilter(new HashMap<String,String>());
+            request = Stubs.request(query);
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            filter.destroy();
+        }
+
+    }
+
+    @Benchmark
+    public Integer calcPriority(PriorityState state)
+    {
+        return state.filter.calcPriority(state.request);
+    }
+
+    /**
+     * Filter with a single request slot, used for the admit and queue cycles
+     */
+    @State(Scope.Thread)
+    public static class CycleState
+    {
+
+        QoSFilter filter;
+        HttpServletResponse response;
+
+        @Setup
+        public void setup() throws ServletException
+        {
+            Map<String,String> params = new HashMap<String,String>();
+            params.put("maxreq","1");
+            filter = createFilter(params);
+            response = Stubs.response();
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            filter.destroy();
+        }
+
+    }
+
+    /**
+     * A request that finds a free slot, is serviced and completes
+     */
+    @Benchmark
+    public void admitCycle(CycleState state) throws Exception
+    {
+        HttpServletRequest request = Stubs.request("priority=3");
+        state.filter.doFilter(request,state.response,Stubs.NOOP_CHAIN);
+        Stubs.suspensionOf(request).complete();
+    }
+
+    /**
+     * A request that waits behind a busy slot, is resumed when the slot frees up, is redispatched and completes
+     */
+    @Benchmark
+    public void queueResumeCycle(CycleState state) throws Exception
+    {
+        HttpServletRequest running = Stubs.request("priority=3");
+        HttpServletRequest waiting = Stubs.request("priority=3");
+        state.filter.doFilter(running,state.response,Stubs.NOOP_CHAIN);
+        state.filter.doFilter(waiting,state.response,Stubs.NOOP_CHAIN);
+        // Completing the running request resumes the waiting one, which the container would then redispatch
+        Stubs.suspensionOf(running).complete();
+        state.filter.doFilter(waiting,state.response,Stubs.NOOP_CHAIN);
+        Stubs.suspensionOf(waiting).complete();
+    }
+
+    /**
+     * Filter with no slots and a full queue, so every request is rejected
+     */
+    @State(Scope.Thread)
+    public static class RejectState
+    {
+
+        QoSFilter filter;
+        HttpServletResponse response;
+
+        @Setup
+        public void setup() throws ServletException
+        {
+            Map<String,String> params = new HashMap<String,String>();
+            params.put("maxreq","0");
+            params.put("maxqueue","0");
+            filter = createFilter(params);
+            response = Stubs.response();
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            filter.destroy();
+        }
+
+    }
+
+    /**
+     * Filter-side cost of rejecting a request, most of which is parsing the priority from the query string. The stub response makes sendError free, so
+     * this cannot compare fastreject against the container's error handling; LoadTest's CPU per request does that against a real Jetty response.
+     */
+    @Benchmark
+    public void reject(RejectState state) throws Exception
+    {
+        state.filter.doFilter(Stubs.request("priority=3"),state.response,Stubs.NOOP_CHAIN);
+    }
+
+    /**
+     * Queue holding a fixed number of requests spread over the priority levels in a given pattern
+     */
+    @State(Scope.Thread)
+    public static class QueueState
+    {
+
+        @Param( { "highest", "lowest", "spread" })
+        public String occupancy;
+
+        @Param( { "10", "1000" })
+        public int depth;
+
+        QoSFilter filter;
+
+        @Setup
+        public void setup() throws ServletException, IOException
+        {
+            Map<String,String> params = new HashMap<String,String>();
+            params.put("maxreq","0");
+            params.put("maxqueue",String.valueOf(depth));
+            params.put("minpriority","5");
+            filter = createFilter(params);
+            HttpServletResponse response = Stubs.response();
+            for (int i = 0; i < depth; i++)
+            {
+                int priority = occupancy.equals("highest")?1:occupancy.equals("lowest")?5:(i % 5) + 1;
+                filter.doFilter(Stubs.request("priority=" + priority),response,Stubs.NOOP_CHAIN);
+            }
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            filter.destroy();
+        }
+
+    }
+
+    /**
+     * Takes the next request off the queue and puts it back, keeping the occupancy constant
+     */
+    @Benchmark
+    public Suspension nextQueuedRequest(QueueState state)
+    {
+        Suspension continuation = state.filter.getNextQueuedRequest();
+        state.filter.addToQueue(continuation,false);
+        return continuation;
+    }
+
+}
@@ -0,0 +1,399 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * In-memory stand-ins for the container objects QoSFilter talks to, so that the filter can be driven without a servlet container
+ * @author Chris Winberry | chris@winberry.net
+ */
+public final class Stubs
+{
+
+    /**
+     * Chain that does nothing, standing in for the filtered servlet
+     */
+    public final static FilterChain NOOP_CHAIN = new FilterChain()
+    {
+
+        public void doFilter(ServletRequest request, ServletResponse response)
+        {
+        }
+    };
+
+    // Output stream that discards everything written to it
+    private final static ServletOutputStream NULL_OUTPUT = new ServletOutputStream()
+    {
+
+        @Override
+        public void write(int b) throws IOException
+        {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+        }
+    };
+
+    private Stubs()
+    {
+    }
+
+    /**
+     * Creates a request for http://localhost/bench with the given query string
+     * @param queryString query string of the request, without the leading '?'
+     * @return Stub request that stores attributes in memory
+     */
+    public static HttpServletRequest request(final String queryString)
+    {
+        return request(queryString,Collections.<String,String> emptyMap(),-1);
+    }
+
+    /**
+     * Creates a request for http://localhost/bench with the given query string, headers and declared body length
+     * @param queryString query string of the request, without the leading '?'
+     * @param headers header values by name, one value per header
+     * @param contentLength declared length of the body, or -1 if unknown
+     * @return Stub request that stores attributes in memory
+     */
+    public static HttpServletRequest request(final String queryString, final Map<String,String> headers, final int contentLength)
+    {
+        final Map<String,Object> attributes = new HashMap<String,Object>();
+        return (HttpServletRequest)Proxy.newProxyInstance(Stubs.class.getClassLoader(),new Class[] { HttpServletRequest.class },new InvocationHandler()
+        {
+
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("getAttribute"))
+                {
+                    return attributes.get(args[0]);
+                }
+                if (name.equals("setAttribute"))
+                {
+                    attributes.put((String)args[0],args[1]);
+                    return null;
+                }
+                if (name.equals("removeAttribute"))
+                {
+                    attributes.remove(args[0]);
+                    return null;
+                }
+                if (name.equals("getRequestURL"))
+                {
+                    return new StringBuffer("http://localhost/bench");
+                }
+                if (name.equals("getQueryString"))
+                {
+                    return queryString;
+                }
+                if (name.equals("getHeaderNames"))
+                {
+                    return Collections.enumeration(headers.keySet());
+                }
+                if (name.equals("getHeader"))
+                {
+                    return headers.get(args[0]);
+                }
+                if (name.equals("getHeaders"))
+                {
+                    String value = headers.get(args[0]);
+                    return Collections.enumeration((value != null)?Collections.singletonList(value):Collections.<String> emptyList());
+                }
+                if (name.equals("getContentLength"))
+                {
+                    return contentLength;
+                }
+                return defaultValue(proxy,method,args);
+            }
+        });
+    }
+
+    /**
+     * Creates a response that discards its headers and body
+     * @return Stub response
+     */
+    public static HttpServletResponse response()
+    {
+        return response(new int[1]);
+    }
+
+    /**
+     * Creates a response that discards its headers and body and stores its status
+     * @param status single element array that receives the status set on the response
+     * @return Stub response
+     */
+    public static HttpServletResponse response(final int[] status)
+    {
+        status[0] = HttpServletResponse.SC_OK;
+        return (HttpServletResponse)Proxy.newProxyInstance(Stubs.class.getClassLoader(),new Class[] { HttpServletResponse.class },new InvocationHandler()
+        {
+
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("getOutputStream"))
+                {
+                    return NULL_OUTPUT;
+                }
+                if (name.equals("setStatus") || name.equals("sendError"))
+                {
+                    status[0] = (Integer)args[0];
+                    return null;
+                }
+                return defaultValue(proxy,method,args);
+            }
+        });
+    }
+
+    /**
+     * Creates a filter config holding the given init-params
+     * @param params init-params of the filter
+     * @return Stub filter config
+     */
+    public static FilterConfig filterConfig(final Map<String,String> params)
+    {
+        return (FilterConfig)Proxy.newProxyInstance(Stubs.class.getClassLoader(),new Class[] { FilterConfig.class },new InvocationHandler()
+        {
+
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                String name = method.getName();
+                if (name.equals("getInitParameter"))
+                {
+                    return params.get(args[0]);
+                }
+                if (name.equals("getInitParameterNames"))
+                {
+                    return Collections.enumeration(params.keySet());
+                }
+                if (name.equals("getFilterName"))
+                {
+                    return "QoSFilter@" + System.identityHashCode(proxy);
+                }
+                return defaultValue(proxy,method,args);
+            }
+        });
+    }
+
+    /**
+     * Gets the stub suspension bound to a request by StubSuspender
+     * @param request a request that has been through the filter
+     * @return Suspension of the request
+     */
+    public static StubSuspension suspensionOf(ServletRequest request)
+    {
+        return (StubSuspension)request.getAttribute(StubSuspender.ATTR_SUSPENSION);
+    }
+
+    // Identity semantics for Object methods and zero values for everything else
+    private static Object defaultValue(Object proxy, Method method, Object[] args)
+    {
+        String name = method.getName();
+        if (name.equals("hashCode"))
+        {
+            return System.identityHashCode(proxy);
+        }
+        if (name.equals("equals"))
+        {
+            return proxy == args[0];
+        }
+        if (name.equals("toString"))
+        {
+            return "Stub@" + Integer.toHexString(System.identityHashCode(proxy));
+        }
+        Class<?> type = method.getReturnType();
+        if (type == Boolean.TYPE)
+        {
+            return false;
+        }
+        if (type == Integer.TYPE)
+        {
+            return 0;
+        }
+        if (type == Long.TYPE)
+        {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Suspension backend that keeps request state in memory and leaves redispatching and completion to the caller
+     */
+    public static class StubSuspender implements Suspender
+    {
+
+        final static String ATTR_SUSPENSION = "Stubs@suspension"; // Request attribute holding the suspension
+
+        public Suspension getSuspension(ServletRequest request, ServletResponse response)
+        {
+            StubSuspension suspension = (StubSuspension)request.getAttribute(ATTR_SUSPENSION);
+            if (suspension == null)
+            {
+                suspension = new StubSuspension(response);
+                request.setAttribute(ATTR_SUSPENSION,suspension);
+            }
+            return suspension;
+        }
+
+    }
+
+    /**
+     * Suspension that behaves like a continuation whose container redispatches only when told to
+     */
+    public static class StubSuspension implements Suspension
+    {
+
+        private final ServletResponse _response; // Response of the request
+        private final Map<String,Object> _attributes = new HashMap<String,Object>(); // Attributes set by the filter
+        private final List<SuspensionListener> _listeners = new ArrayList<SuspensionListener>(); // Registered event listeners
+        private long _timeout; // Timeout requested by the filter
+        private boolean _initial = true; // Whether the request is still on its first pass
+        private boolean _suspended; // Whether the request is waiting to be resumed
+        private boolean _resumed; // Whether the request was resumed since it was last suspended
+        private boolean _expired; // Whether the request timed out since it was last suspended
+
+        public StubSuspension(ServletResponse response)
+        {
+            _response = response;
+        }
+
+        /**
+         * Fires the completion event, as the container would once the request has been handled
+         */
+        public void complete()
+        {
+            for (SuspensionListener listener : _listeners)
+            {
+                listener.onComplete(this);
+            }
+        }
+
+        /**
+         * Times the request out, as the container would when its timeout elapses
+         */
+        public void expire()
+        {
+            _suspended = false;
+            _expired = true;
+            _initial = false;
+            for (SuspensionListener listener : _listeners)
+            {
+                listener.onTimeout(this);
+            }
+        }
+
+        /**
+         * @return Timeout most recently requested by the filter
+         */
+        public long getTimeout()
+        {
+            return _timeout;
+        }
+
+        public boolean isInitial()
+        {
+            return _initial;
+        }
+
+        public boolean isResumed()
+        {
+            return _resumed;
+        }
+
+        public boolean isExpired()
+        {
+            return _expired;
+        }
+
+        public boolean isSuspended()
+        {
+            return _suspended;
+        }
+
+        public void setTimeout(long timeoutMs)
+        {
+            _timeout = timeoutMs;
+        }
+
+        public void suspend()
+        {
+            _suspended = true;
+            _resumed = false;
+            _expired = false;
+        }
+
+        public void resume()
+        {
+            if (_suspended)
+            {
+                _suspended = false;
+                _resumed = true;
+                _initial = false;
+            }
+        }
+
+        public boolean awaitRedispatch()
+        {
+            return false;
+        }
+
+        public void endDispatch()
+        {
+        }
+
+        public void addSuspensionListener(SuspensionListener listener)
+        {
+            _listeners.add(listener);
+        }
+
+        public ServletResponse getServletResponse()
+        {
+            return _response;
+        }
+
+        public void setAttribute(String name, Object value)
+        {
+            _attributes.put(name,value);
+        }
+
+        public Object getAttribute(String name)
+        {
+            return _attributes.get(name);
+        }
+
+    }
+
+}
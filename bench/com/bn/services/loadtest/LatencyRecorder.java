@@ -0,0 +1,251 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.loadtest;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Collects request outcomes per priority level and reports throughput, latency percentiles and rejection rates
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class LatencyRecorder
+{
+
+    private final static double[] PERCENTILES = { 50, 90, 99, 99.9 }; // Percentiles included in the report
+
+    private final Map<Integer,Level> _levels = new TreeMap<Integer,Level>(); // Outcomes keyed by priority level
+
+    // Outcomes recorded for a single priority level
+    private static class Level
+    {
+
+        private long[] _latencies = new long[1024]; // Latencies in microseconds of successful requests
+        private int _count; // Number of latencies recorded
+        private long _rejected; // Number of 503 responses
+        private long _errors; // Number of requests that failed for any other reason
+
+    }
+
+    /**
+     * Records a successful request
+     * @param priority priority level the request was sent with
+     * @param latencyMicros time from the intended send time to the end of the response
+     */
+    public synchronized void recordSuccess(Integer priority, long latencyMicros)
+    {
+        Level level = getLevel(priority);
+        if (level._count == level._latencies.length)
+        {
+            level._latencies = Arrays.copyOf(level._latencies,level._count * 2);
+        }
+        level._latencies[level._count++] = latencyMicros;
+    }
+
+    /**
+     * Records a request the filter rejected with a 503
+     * @param priority priority level the request was sent with
+     */
+    public synchronized void recordRejected(Integer priority)
+    {
+        getLevel(priority)._rejected++;
+    }
+
+    /**
+     * Records a request that failed with an unexpected status or an I/O error
+     * @param priority priority level the request was sent with
+     */
+    public synchronized void recordError(Integer priority)
+    {
+        getLevel(priority)._errors++;
+    }
+
+    // Gets the outcomes of a priority level, creating them on first use
+    private Level getLevel(Integer priority)
+    {
+        Level level = _levels.get(priority);
+        if (level == null)
+        {
+            level = new Level();
+            _levels.put(priority,level);
+        }
+        return level;
+    }
+
+    /**
+     * @return Priority levels that have recorded outcomes, in ascending order
+     */
+    public synchronized Set<Integer> getPriorities()
+    {
+        return new TreeSet<Integer>(_levels.keySet());
+    }
+
+    /**
+     * @param priority priority level to count
+     * @return Number of successful requests at the priority level
+     */
+    public synchronized long getOk(Integer priority)
+    {
+        Level level = _levels.get(priority);
+        return (level != null)?level._count:0;
+    }
+
+    /**
+     * @param priority priority level to count
+     * @return Number of rejected requests at the priority level
+     */
+    public synchronized long getRejected(Integer priority)
+    {
+        Level level = _levels.get(priority);
+        return (level != null)?level._rejected:0;
+    }
+
+    /**
+     * @param priority priority level to count
+     * @return Number of failed requests at the priority level
+     */
+    public synchronized long getErrors(Integer priority)
+    {
+        Level level = _levels.get(priority);
+        return (level != null)?level._errors:0;
+    }
+
+    /**
+     * Gets a latency percentile of the successful requests at one priority level
+     * @param priority priority level to get the percentile for
+     * @param percentile percentile to get, e.g. 99.9
+     * @return Latency in microseconds, or 0 if nothing succeeded at the level
+     */
+    public synchronized long getPercentile(Integer priority, double percentile)
+    {
+        Level level = _levels.get(priority);
+        if (level == null)
+        {
+            return 0;
+        }
+        long[] latencies = Arrays.copyOf(level._latencies,level._count);
+        Arrays.sort(latencies);
+        return percentile(latencies,percentile);
+    }
+
+    /**
+     * @return Number of successful requests across all priority levels
+     */
+    public synchronized long getOk()
+    {
+        long ok = 0;
+        for (Level level : _levels.values())
+        {
+            ok += level._count;
+        }
+        return ok;
+    }
+
+    /**
+     * @return Number of rejected requests across all priority levels
+     */
+    public synchronized long getRejected()
+    {
+        long rejected = 0;
+        for (Level level : _levels.values())
+        {
+            rejected += level._rejected;
+        }
+        return rejected;
+    }
+
+    /**
+     * @return Number of failed requests across all priority levels
+     */
+    public synchronized long getErrors()
+    {
+        long errors = 0;
+        for (Level level : _levels.values())
+        {
+            errors += level._errors;
+        }
+        return errors;
+    }
+
+    /**
+     * Gets a latency percentile of the successful requests across all priority levels
+     * @param percentile percentile to get, e.g. 99.9
+     * @return Latency in microseconds, or 0 if nothing succeeded
+     */
+    public synchronized long getPercentile(double percentile)
+    {
+        long[] latencies = new long[(int)getOk()];
+        int count = 0;
+        for (Level level : _levels.values())
+        {
+            System.arraycopy(level._latencies,0,latencies,count,level._count);
+            count += level._count;
+        }
+        Arrays.sort(latencies);
+        return percentile(latencies,percentile);
+    }
+
+    /**
+     * Prints a report of everything recorded
+     * @param out stream to print to
+     * @param durationMs length of the measured period, used to calculate throughput
+     */
+    public synchronized void report(PrintStream out, long durationMs)
+    {
+        long totalOk = 0;
+        long totalRejected = 0;
+        long totalErrors = 0;
+        out.println(String.format("%-8s %10s %10s %8s %8s %10s %10s %10s %10s %10s","priority","ok","ok/s","503%","errors","p50ms","p90ms","p99ms",
+                "p99.9ms","maxms"));
+        for (Map.Entry<Integer,Level> entry : _levels.entrySet())
+        {
+            Level level = entry.getValue();
+            long[] latencies = Arrays.copyOf(level._latencies,level._count);
+            Arrays.sort(latencies);
+            long total = level._count + level._rejected + level._errors;
+            StringBuilder line = new StringBuilder(String.format("%-8d %10d %10.1f %8.2f %8d",entry.getKey(),level._count,level._count * 1000.0 / durationMs,
+                    (total > 0)?level._rejected * 100.0 / total:0.0,level._errors));
+            for (double percentile : PERCENTILES)
+            {
+                line.append(String.format(" %10.1f",percentile(latencies,percentile) / 1000.0));
+            }
+            line.append(String.format(" %10.1f",(latencies.length > 0)?latencies[latencies.length - 1] / 1000.0:0.0));
+            out.println(line);
+            totalOk += level._count;
+            totalRejected += level._rejected;
+            totalErrors += level._errors;
+        }
+        long total = totalOk + totalRejected + totalErrors;
+        out.println(String.format("total: %d requests, %.1f ok/s, %.2f%% rejected, %d errors",total,totalOk * 1000.0 / durationMs,
+                (total > 0)?totalRejected * 100.0 / total:0.0,totalErrors));
+    }
+
+    // Gets a percentile from sorted values using the nearest-rank method
+    private static long percentile(long[] sorted, double percentile)
+    {
+        if (sorted.length == 0)
+        {
+            return 0;
+        }
+        int rank = (int)Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0,Math.min(sorted.length - 1,rank - 1))];
+    }
+
+}
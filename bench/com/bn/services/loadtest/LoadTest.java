@@ -0,0 +1,376 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.FilterMapping;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.bn.services.filters.QoSFilter;
+import com.bn.services.servlets.Echo;
+
+/**
+ * Load test harness that runs QoSFilter in front of the Echo servlet in an embedded Jetty server and drives it over loopback. Options are given as key=value
+ * arguments:
+ * <ul>
+ * <li>mode: closed (a fixed number of clients sending back to back) or open (requests sent at a fixed average rate regardless of responses)</li>
+ * <li>clients: number of clients in closed mode</li>
+ * <li>rate: requests per second in open mode</li>
+ * <li>thinkms: pause between requests of a closed mode client</li>
+ * <li>mix: priority mix as priority:weight pairs, e.g. 1:10,3:30,5:60</li>
+ * <li>duration, warmup: seconds measured, and seconds run before measuring starts</li>
+ * <li>threads: size of the Jetty thread pool</li>
+ * <li>filter.*, echo.*: init-params passed to QoSFilter and Echo</li>
+ * </ul>
+ * Open mode measures latency from the time a request was due to be sent, so a stalled server is not hidden by clients waiting on it. The report includes
+ * the process CPU time spent per request during the measured period; the clients run in the same process, so it is only comparable between runs with the
+ * same client load.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class LoadTest
+{
+
+    private final static String FILTER_PREFIX = "filter.";
+    private final static String ECHO_PREFIX = "echo.";
+
+    private final Map<String,String> _options = new LinkedHashMap<String,String>(); // Harness options
+    private final Map<String,String> _filterParams = new LinkedHashMap<String,String>(); // QoSFilter init-params
+    private final Map<String,String> _echoParams = new LinkedHashMap<String,String>(); // Echo init-params
+    private final LatencyRecorder _recorder = new LatencyRecorder(); // Outcomes of measured requests
+    private final PriorityMix _mix; // Priority levels requests are sent with
+    private String _baseUrl; // URL of the Echo servlet
+    private long _measureStart; // Time at which measuring starts, see now()
+    private long _measureEnd; // Time at which the test ends, see now()
+    private volatile long _cpuStart = -1; // Process CPU time in NS at the start of the measured period, or -1 if not sampled
+    private volatile long _cpuEnd = -1; // Process CPU time in NS at the end of the measured period, or -1 if not sampled
+
+    public LoadTest(String[] args)
+    {
+        _options.put("mode","closed");
+        _options.put("clients","50");
+        _options.put("rate","200");
+        _options.put("thinkms","0");
+        _options.put("mix","1:10,3:30,5:60");
+        _options.put("duration","30");
+        _options.put("warmup","5");
+        _options.put("threads","200");
+        for (String arg : args)
+        {
+            int split = arg.indexOf('=');
+            if (split < 1)
+            {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            String key = arg.substring(0,split);
+            String value = arg.substring(split + 1);
+            if (key.startsWith(FILTER_PREFIX))
+            {
+                _filterParams.put(key.substring(FILTER_PREFIX.length()),value);
+            }
+            else if (key.startsWith(ECHO_PREFIX))
+            {
+                _echoParams.put(key.substring(ECHO_PREFIX.length()),value);
+            }
+            else
+            {
+                _options.put(key,value);
+            }
+        }
+        _mix = new PriorityMix(_options.get("mix"));
+    }
+
+    // Current time in MS on the same clock the request latencies are measured with
+    private static long now()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    // Process CPU time in NS, or -1 if the JVM does not report it
+    private static long processCpuTime()
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+        {
+            return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    // Samples the process CPU time at the start and end of the measured period
+    private void startCpuSampler()
+    {
+        Thread sampler = new Thread("LoadTest CPU sampler")
+        {
+
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(Math.max(0,_measureStart - now()));
+                    _cpuStart = processCpuTime();
+                    Thread.sleep(Math.max(0,_measureEnd - now()));
+                    _cpuEnd = processCpuTime();
+                }
+                catch (InterruptedException e)
+                {
+                }
+            }
+        };
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    private int getInt(String key)
+    {
+        return Integer.parseInt(_options.get(key));
+    }
+
+    // Starts an embedded server with the filter in front of the Echo servlet on an ephemeral loopback port
+    private Server startServer() throws Exception
+    {
+        Server server = new Server(0);
+        server.getConnectors()[0].setHost("127.0.0.1");
+        server.setThreadPool(new QueuedThreadPool(getInt("threads")));
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        FilterHolder filterHolder = new FilterHolder(QoSFilter.class);
+        filterHolder.setName("QoS");
+        filterHolder.setInitParameters(_filterParams);
+        context.addFilter(filterHolder,"/*",FilterMapping.DEFAULT);
+        ServletHolder echoHolder = new ServletHolder(Echo.class);
+        echoHolder.setInitParameters(_echoParams);
+        context.addServlet(echoHolder,"/*");
+        server.setHandler(context);
+
+        server.start();
+        _baseUrl = "http://127.0.0.1:" + server.getConnectors()[0].getLocalPort() + "/echo";
+        return server;
+    }
+
+    // Sends one request and records its outcome if it was due inside the measured period
+    private void sendRequest(int priority, long intendedStartNanos)
+    {
+        long intendedStart = TimeUnit.NANOSECONDS.toMillis(intendedStartNanos);
+        boolean measured = intendedStart >= _measureStart && intendedStart < _measureEnd;
+        HttpURLConnection connection = null;
+        try
+        {
+            connection = (HttpURLConnection)new URL(_baseUrl + "?priority=" + priority).openConnection();
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(60000);
+            int status = connection.getResponseCode();
+            drain((status < 400)?connection.getInputStream():connection.getErrorStream());
+            long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedStartNanos);
+            if (!measured)
+            {
+                return;
+            }
+            if (status == HttpURLConnection.HTTP_OK)
+            {
+                _recorder.recordSuccess(priority,latencyMicros);
+            }
+            else if (status == HttpURLConnection.HTTP_UNAVAILABLE)
+            {
+                _recorder.recordRejected(priority);
+            }
+            else
+            {
+                _recorder.recordError(priority);
+            }
+        }
+        catch (IOException e)
+        {
+            if (measured)
+            {
+                _recorder.recordError(priority);
+            }
+            if (connection != null)
+            {
+                connection.disconnect();
+            }
+        }
+    }
+
+    // Reads and closes a response body so that the connection can be reused
+    private static void drain(InputStream in) throws IOException
+    {
+        if (in == null)
+        {
+            return;
+        }
+        byte[] buffer = new byte[4096];
+        try
+        {
+            while (in.read(buffer) >= 0)
+            {
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    // Runs clients that each send their next request as soon as the previous one completes
+    private void runClosedLoop() throws InterruptedException
+    {
+        final long thinkMs = getInt("thinkms");
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < getInt("clients"); i++)
+        {
+            Thread client = new Thread("LoadTest client " + i)
+            {
+
+                @Override
+                public void run()
+                {
+                    Random random = new Random();
+                    while (now() < _measureEnd)
+                    {
+                        sendRequest(_mix.next(random),System.nanoTime());
+                        if (thinkMs > 0)
+                        {
+                            try
+                            {
+                                Thread.sleep(thinkMs);
+                            }
+                            catch (InterruptedException e)
+                            {
+                                return;
+                            }
+                        }
+                    }
+                }
+            };
+            clients.add(client);
+            client.start();
+        }
+        for (Thread client : clients)
+        {
+            client.join();
+        }
+    }
+
+    // Sends requests at exponentially distributed intervals, independently of how fast responses come back
+    private void runOpenLoop() throws InterruptedException
+    {
+        double meanIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Double.parseDouble(_options.get("rate"));
+        ExecutorService senders = Executors.newCachedThreadPool();
+        Random random = new Random();
+        long nextStart = System.nanoTime();
+        while (now() < _measureEnd)
+        {
+            long wait = nextStart - System.nanoTime();
+            if (wait > 0)
+            {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            final int priority = _mix.next(random);
+            final long intendedStart = nextStart;
+            senders.execute(new Runnable()
+            {
+
+                public void run()
+                {
+                    sendRequest(priority,intendedStart);
+                }
+            });
+            nextStart += (long)(-Math.log(1 - random.nextDouble()) * meanIntervalNanos);
+        }
+        senders.shutdown();
+        senders.awaitTermination(2,TimeUnit.MINUTES);
+    }
+
+    /**
+     * Runs the test and prints the report
+     * @throws Exception if the server cannot be started
+     */
+    public void run() throws Exception
+    {
+        Server server = startServer();
+        try
+        {
+            System.out.println("LoadTest " + _options + " filter=" + _filterParams + " echo=" + _echoParams);
+            _measureStart = now() + TimeUnit.SECONDS.toMillis(getInt("warmup"));
+            _measureEnd = _measureStart + TimeUnit.SECONDS.toMillis(getInt("duration"));
+            startCpuSampler();
+            if ("open".equals(_options.get("mode")))
+            {
+                runOpenLoop();
+            }
+            else
+            {
+                runClosedLoop();
+            }
+            _recorder.report(System.out,TimeUnit.SECONDS.toMillis(getInt("duration")));
+            if (getCpuMicrosPerRequest() >= 0)
+            {
+                System.out.println(String.format("cpu: %.1f us per request",getCpuMicrosPerRequest()));
+            }
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    /**
+     * @return Outcomes of the measured requests
+     */
+    public LatencyRecorder getRecorder()
+    {
+        return _recorder;
+    }
+
+    /**
+     * @return Process CPU time in microseconds per request answered during the measured period, or -1 if it was not measured
+     */
+    public double getCpuMicrosPerRequest()
+    {
+        long answered = _recorder.getOk() + _recorder.getRejected() + _recorder.getErrors();
+        if (_cpuStart < 0 || _cpuEnd < 0 || answered == 0)
+        {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMicros(_cpuEnd - _cpuStart) / (double)answered;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        new LoadTest(args).run();
+    }
+
+}
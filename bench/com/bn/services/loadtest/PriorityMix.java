@@ -0,0 +1,67 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.loadtest;
+
+import java.util.Random;
+
+/**
+ * Weighted mix of priority levels, given as priority:weight pairs such as 1:10,3:30,5:60 (a missing weight counts as 1), shared by the load test and the
+ * simulator
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class PriorityMix
+{
+
+    private final int[] _priorities; // Priority levels in the mix
+    private final int[] _cumulativeWeights; // Running total of the mix weights, used to pick a priority
+
+    /**
+     * @param mix priority:weight pairs separated by commas
+     */
+    public PriorityMix(String mix)
+    {
+        String[] entries = mix.split(",");
+        _priorities = new int[entries.length];
+        _cumulativeWeights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++)
+        {
+            String[] parts = entries[i].trim().split(":");
+            _priorities[i] = Integer.parseInt(parts[0]);
+            total += (parts.length > 1)?Integer.parseInt(parts[1]):1;
+            _cumulativeWeights[i] = total;
+        }
+    }
+
+    /**
+     * Picks a priority level according to the mix weights
+     * @param random source of randomness, so that callers control seeding and thread confinement
+     * @return The priority level
+     */
+    public int next(Random random)
+    {
+        int pick = random.nextInt(_cumulativeWeights[_cumulativeWeights.length - 1]);
+        for (int i = 0; i < _cumulativeWeights.length; i++)
+        {
+            if (pick < _cumulativeWeights[i])
+            {
+                return _priorities[i];
+            }
+        }
+        return _priorities[_priorities.length - 1];
+    }
+
+}
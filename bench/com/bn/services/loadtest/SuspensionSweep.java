@@ -0,0 +1,137 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.loadtest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares suspension backends by running LoadTest in closed-loop mode for each backend at increasing numbers of clients. Options are given as key=value
+ * arguments:
+ * <ul>
+ * <li>backends: values of the filter's suspension init-param to compare, e.g. continuation,blocking</li>
+ * <li>clients: client counts to run each backend at, e.g. 25,50,100,200,400</li>
+ * <li>maxreject, maxp99ms: limits a run must stay within (503 percentage and p99 latency, with no errors) to count as sustained</li>
+ * <li>anything else is passed to each LoadTest run, e.g. duration, threads, filter.maxreq, echo.latencyms</li>
+ * </ul>
+ * Each run prints a row with throughput, latency, rejections and process CPU per request, which shows the per-request overhead of a backend at low client
+ * counts. The summary gives each backend's highest sustained client count.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class SuspensionSweep
+{
+
+    private final Map<String,String> _options = new LinkedHashMap<String,String>(); // Sweep options
+    private final Map<String,String> _loadTestArgs = new LinkedHashMap<String,String>(); // Options passed to every LoadTest run
+
+    public SuspensionSweep(String[] args)
+    {
+        _options.put("backends","continuation,blocking");
+        _options.put("clients","25,50,100,200,400");
+        _options.put("maxreject","1");
+        _options.put("maxp99ms","1000");
+        _loadTestArgs.put("duration","10");
+        _loadTestArgs.put("warmup","3");
+        // Keep the queue bound out of the way so that rejections reflect waiting time rather than queue length, and stop completing requests from
+        // blocking on the slot semaphore, so that the runs measure the backends rather than the lock timeout
+        _loadTestArgs.put("filter.maxqueue","100000");
+        _loadTestArgs.put("filter.locktimeout","0");
+        for (String arg : args)
+        {
+            int split = arg.indexOf('=');
+            if (split < 1)
+            {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            String key = arg.substring(0,split);
+            if (_options.containsKey(key))
+            {
+                _options.put(key,arg.substring(split + 1));
+            }
+            else
+            {
+                _loadTestArgs.put(key,arg.substring(split + 1));
+            }
+        }
+        _loadTestArgs.put("mode","closed");
+    }
+
+    // Runs one LoadTest with the given backend and client count
+    private LoadTest runOne(String backend, String clients) throws Exception
+    {
+        List<String> args = new ArrayList<String>();
+        for (Map.Entry<String,String> entry : _loadTestArgs.entrySet())
+        {
+            args.add(entry.getKey() + "=" + entry.getValue());
+        }
+        args.add("filter.suspension=" + backend);
+        args.add("clients=" + clients);
+        LoadTest loadTest = new LoadTest(args.toArray(new String[args.size()]));
+        loadTest.run();
+        return loadTest;
+    }
+
+    /**
+     * Runs every backend at every client count and prints the comparison
+     * @throws Exception if a server cannot be started
+     */
+    public void run() throws Exception
+    {
+        double maxReject = Double.parseDouble(_options.get("maxreject"));
+        double maxP99Ms = Double.parseDouble(_options.get("maxp99ms"));
+        long durationMs = TimeUnit.SECONDS.toMillis(Integer.parseInt(_loadTestArgs.get("duration")));
+        List<String> rows = new ArrayList<String>();
+        Map<String,String> sustained = new LinkedHashMap<String,String>();
+        for (String backend : _options.get("backends").split(","))
+        {
+            sustained.put(backend,"none");
+            for (String clients : _options.get("clients").split(","))
+            {
+                LoadTest loadTest = runOne(backend,clients);
+                LatencyRecorder recorder = loadTest.getRecorder();
+                long total = recorder.getOk() + recorder.getRejected() + recorder.getErrors();
+                double rejectPercent = (total > 0)?recorder.getRejected() * 100.0 / total:0.0;
+                double p99Ms = recorder.getPercentile(99) / 1000.0;
+                rows.add(String.format("%-14s %8s %10.1f %10.1f %10.1f %8.2f %8d %10.1f",backend,clients,recorder.getOk() * 1000.0 / durationMs,
+                        recorder.getPercentile(50) / 1000.0,p99Ms,rejectPercent,recorder.getErrors(),loadTest.getCpuMicrosPerRequest()));
+                if (recorder.getErrors() == 0 && rejectPercent <= maxReject && p99Ms <= maxP99Ms)
+                {
+                    sustained.put(backend,clients);
+                }
+            }
+        }
+        System.out.println();
+        System.out.println(String.format("%-14s %8s %10s %10s %10s %8s %8s %10s","backend","clients","ok/s","p50ms","p99ms","503%","errors","cpu-us/req"));
+        for (String row : rows)
+        {
+            System.out.println(row);
+        }
+        for (Map.Entry<String,String> entry : sustained.entrySet())
+        {
+            System.out.println("sustained: " + entry.getKey() + " up to " + entry.getValue() + " clients (503% <= " + maxReject + ", p99 <= " + maxP99Ms
+                    + "ms, no errors)");
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        new SuspensionSweep(args).run();
+    }
+
+}
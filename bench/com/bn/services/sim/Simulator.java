@@ -0,0 +1,548 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.sim;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.bn.services.filters.QoSFilter;
+import com.bn.services.filters.Stubs;
+import com.bn.services.filters.Suspender;
+import com.bn.services.filters.Suspension;
+import com.bn.services.filters.SuspensionListener;
+import com.bn.services.loadtest.LatencyRecorder;
+import com.bn.services.loadtest.PriorityMix;
+import com.bn.services.servlets.LatencyDistribution;
+
+/**
+ * Deterministic discrete-event simulator that runs the real QoSFilter queueing logic against a virtual clock. Requests arrive from a synthetic Poisson
+ * source or a replayed trace, are held by the filter exactly as the container would hold them, and are serviced for a simulated time. Options are given as
+ * key=value arguments:
+ * <ul>
+ * <li>rate, duration: arrivals per second and seconds of arrivals for the synthetic source</li>
+ * <li>mix: priority mix as priority:weight pairs, e.g. 1:10,3:30,5:60</li>
+ * <li>service: fixed, lognormal or bimodal, with servicems, servicesigma, serviceslowms and serviceslowratio</li>
+ * <li>trace: file of "arrivalMs priority serviceMs" lines to replay instead of the synthetic source</li>
+ * <li>bucket: width in seconds of the buckets the curves are reported in</li>
+ * <li>seed: random seed, so that runs are repeatable</li>
+ * <li>filter.*: init-params passed to QoSFilter (locktimeout is forced to 0 since slot waits would block in real time)</li>
+ * </ul>
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class Simulator
+{
+
+    private final static String FILTER_PREFIX = "filter.";
+    private final static String ATTR_REQUEST = "Simulator@request"; // Request attribute holding the simulated request
+
+    private final Map<String,String> _options = new LinkedHashMap<String,String>(); // Simulator options
+    private final Map<String,String> _filterParams = new LinkedHashMap<String,String>(); // QoSFilter init-params
+    private final VirtualClock _clock = new VirtualClock(); // Time seen by the filter
+    private final PriorityQueue<Event> _events = new PriorityQueue<Event>(); // Pending events, earliest first
+    private final LatencyRecorder _recorder = new LatencyRecorder(); // Outcomes over the whole run
+    private final Map<Long,Bucket> _curves = new TreeMap<Long,Bucket>(); // Outcomes per time bucket
+    private final Random _random;
+    private final long _bucketMs;
+    private QoSFilter _filter;
+    private long _eventSeq; // Orders events scheduled for the same time
+    private long _lastOutcomeTime; // Time the last request was answered
+
+    public Simulator(String[] args)
+    {
+        _options.put("rate","200");
+        _options.put("duration","60");
+        _options.put("mix","1:10,3:30,5:60");
+        _options.put("service","fixed");
+        _options.put("servicems","100");
+        _options.put("servicesigma","0.5");
+        _options.put("serviceslowms","1000");
+        _options.put("serviceslowratio","0.1");
+        _options.put("bucket","1");
+        _options.put("seed","1");
+        for (String arg : args)
+        {
+            int split = arg.indexOf('=');
+            if (split < 1)
+            {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            String key = arg.substring(0,split);
+            if (key.startsWith(FILTER_PREFIX))
+            {
+                _filterParams.put(key.substring(FILTER_PREFIX.length()),arg.substring(split + 1));
+            }
+            else
+            {
+                _options.put(key,arg.substring(split + 1));
+            }
+        }
+        _filterParams.put("locktimeout","0");
+        _random = new Random(Long.parseLong(_options.get("seed")));
+        _bucketMs = (long)(Double.parseDouble(_options.get("bucket")) * 1000);
+    }
+
+    // Something that happens at a point in virtual time
+    private abstract class Event implements Comparable<Event>
+    {
+
+        long _time; // Virtual time at which the event fires
+        long _seq; // Scheduling order, breaks ties between events at the same time
+
+        public int compareTo(Event other)
+        {
+            if (_time != other._time)
+            {
+                return (_time < other._time)?-1:1;
+            }
+            return (_seq < other._seq)?-1:(_seq > other._seq)?1:0;
+        }
+
+        abstract void fire() throws Exception;
+
+    }
+
+    // Schedules an event at a virtual time, which is never earlier than the current one
+    private void schedule(long time, Event event)
+    {
+        event._time = Math.max(time,_clock.currentTimeMillis());
+        event._seq = _eventSeq++;
+        _events.add(event);
+    }
+
+    // A request moving through the simulation
+    private class SimRequest
+    {
+
+        final long _arrival; // Virtual time the request arrived
+        final int _priority; // Priority level the request was sent with
+        final long _serviceMs; // Time the backend takes to service the request
+        final int[] _status = new int[1]; // Status set on the response by the filter
+        final HttpServletRequest _request; // Request passed to the filter
+        final HttpServletResponse _response; // Response passed to the filter
+        boolean _inService; // Whether the filter passed the request on to the backend
+
+        SimRequest(long arrival, int priority, long serviceMs)
+        {
+            _arrival = arrival;
+            _priority = priority;
+            _serviceMs = serviceMs;
+            _request = Stubs.request("priority=" + priority);
+            _response = Stubs.response(_status);
+            _request.setAttribute(ATTR_REQUEST,this);
+        }
+
+    }
+
+    // Backend standing in for the servlet: holds each request for its service time
+    private final FilterChain _backend = new FilterChain()
+    {
+
+        public void doFilter(ServletRequest request, ServletResponse response)
+        {
+            final SimRequest simRequest = (SimRequest)request.getAttribute(ATTR_REQUEST);
+            simRequest._inService = true;
+            schedule(_clock.currentTimeMillis() + simRequest._serviceMs,new Event()
+            {
+
+                @Override
+                void fire()
+                {
+                    complete(simRequest);
+                }
+            });
+        }
+    };
+
+    // Runs a request through the filter, as the container does on arrival and on every redispatch
+    private void dispatch(SimRequest simRequest) throws Exception
+    {
+        _filter.doFilter(simRequest._request,simRequest._response,_backend);
+        SimSuspension suspension = (SimSuspension)_suspender.getSuspension(simRequest._request,simRequest._response);
+        // Neither queued nor serviced means the filter answered the request itself
+        if (!suspension.isSuspended() && !simRequest._inService)
+        {
+            complete(simRequest);
+        }
+    }
+
+    // Finishes a request, as the container does once the response is complete
+    private void complete(SimRequest simRequest)
+    {
+        long now = _clock.currentTimeMillis();
+        _lastOutcomeTime = now;
+        SimSuspension suspension = (SimSuspension)_suspender.getSuspension(simRequest._request,simRequest._response);
+        for (SuspensionListener listener : suspension._listeners)
+        {
+            listener.onComplete(suspension);
+        }
+        LatencyRecorder bucket = getBucket(now)._outcomes;
+        if (simRequest._inService && simRequest._status[0] == HttpServletResponse.SC_OK)
+        {
+            long latencyMicros = (now - simRequest._arrival) * 1000;
+            _recorder.recordSuccess(simRequest._priority,latencyMicros);
+            bucket.recordSuccess(simRequest._priority,latencyMicros);
+        }
+        else if (simRequest._status[0] == HttpServletResponse.SC_SERVICE_UNAVAILABLE)
+        {
+            _recorder.recordRejected(simRequest._priority);
+            bucket.recordRejected(simRequest._priority);
+        }
+        else
+        {
+            _recorder.recordError(simRequest._priority);
+            bucket.recordError(simRequest._priority);
+        }
+    }
+
+    // Backend that binds a simulated suspension to each request
+    private final Suspender _suspender = new Suspender()
+    {
+
+        public Suspension getSuspension(ServletRequest request, ServletResponse response)
+        {
+            SimRequest simRequest = (SimRequest)request.getAttribute(ATTR_REQUEST);
+            SimSuspension suspension = (SimSuspension)request.getAttribute(SimSuspension.class.getName());
+            if (suspension == null)
+            {
+                suspension = new SimSuspension(simRequest);
+                request.setAttribute(SimSuspension.class.getName(),suspension);
+            }
+            return suspension;
+        }
+    };
+
+    // Suspension whose timeouts and redispatches are events in virtual time
+    private class SimSuspension implements Suspension
+    {
+
+        private final SimRequest _simRequest; // Request the suspension belongs to
+        private final Map<String,Object> _attributes = new HashMap<String,Object>(); // Attributes set by the filter
+        private final List<SuspensionListener> _listeners = new ArrayList<SuspensionListener>(); // Registered event listeners
+        private long _timeout; // Timeout applied on the next suspend
+        private int _generation; // Incremented on every suspend and resume so that stale timeouts are ignored
+        private boolean _initial = true;
+        private boolean _suspended;
+        private boolean _resumed;
+        private boolean _expired;
+
+        SimSuspension(SimRequest simRequest)
+        {
+            _simRequest = simRequest;
+        }
+
+        public boolean isInitial()
+        {
+            return _initial;
+        }
+
+        public boolean isResumed()
+        {
+            return _resumed;
+        }
+
+        public boolean isExpired()
+        {
+            return _expired;
+        }
+
+        public boolean isSuspended()
+        {
+            return _suspended;
+        }
+
+        public void setTimeout(long timeoutMs)
+        {
+            _timeout = timeoutMs;
+        }
+
+        public void suspend()
+        {
+            _suspended = true;
+            _resumed = false;
+            _expired = false;
+            final int generation = ++_generation;
+            schedule(_clock.currentTimeMillis() + Math.max(0,_timeout),new Event()
+            {
+
+                @Override
+                void fire() throws Exception
+                {
+                    if (generation == _generation && _suspended)
+                    {
+                        expire();
+                    }
+                }
+            });
+        }
+
+        // Times the request out and redispatches it, as the container does
+        private void expire() throws Exception
+        {
+            _suspended = false;
+            _expired = true;
+            _initial = false;
+            for (SuspensionListener listener : _listeners)
+            {
+                listener.onTimeout(this);
+            }
+            dispatch(_simRequest);
+        }
+
+        public void resume()
+        {
+            if (!_suspended)
+            {
+                return;
+            }
+            _suspended = false;
+            _resumed = true;
+            _initial = false;
+            _generation++;
+            schedule(_clock.currentTimeMillis(),new Event()
+            {
+
+                @Override
+                void fire() throws Exception
+                {
+                    dispatch(_simRequest);
+                }
+            });
+        }
+
+        public boolean awaitRedispatch()
+        {
+            return false;
+        }
+
+        public void endDispatch()
+        {
+        }
+
+        public void addSuspensionListener(SuspensionListener listener)
+        {
+            _listeners.add(listener);
+        }
+
+        public ServletResponse getServletResponse()
+        {
+            return _simRequest._response;
+        }
+
+        public void setAttribute(String name, Object value)
+        {
+            _attributes.put(name,value);
+        }
+
+        public Object getAttribute(String name)
+        {
+            return _attributes.get(name);
+        }
+
+    }
+
+    // Arrivals within one time bucket and the outcomes of the requests answered in it
+    private static class Bucket
+    {
+
+        final Map<Integer,Long> _arrivals = new TreeMap<Integer,Long>(); // Number of requests that arrived, by priority level
+        final LatencyRecorder _outcomes = new LatencyRecorder(); // Outcomes of the requests answered, by priority level
+
+        void recordArrival(int priority)
+        {
+            Long arrivals = _arrivals.get(priority);
+            _arrivals.put(priority,(arrivals != null)?arrivals + 1:1L);
+        }
+
+    }
+
+    // Gets the bucket for a virtual time, creating it on first use
+    private Bucket getBucket(long time)
+    {
+        Long start = time / _bucketMs * _bucketMs;
+        Bucket bucket = _curves.get(start);
+        if (bucket == null)
+        {
+            bucket = new Bucket();
+            _curves.put(start,bucket);
+        }
+        return bucket;
+    }
+
+    // Source of arriving requests, returning null once there are no more
+    private interface Arrivals
+    {
+
+        SimRequest next() throws IOException;
+
+    }
+
+    // Poisson arrivals with priorities and service times drawn from the configured distributions
+    private class SyntheticArrivals implements Arrivals
+    {
+
+        private final double _meanIntervalMs = 1000 / Double.parseDouble(_options.get("rate"));
+        private final long _end = (long)(Double.parseDouble(_options.get("duration")) * 1000);
+        private final PriorityMix _mix = new PriorityMix(_options.get("mix"));
+        private final LatencyDistribution _service = new LatencyDistribution(_options.get("service"),Double.parseDouble(_options.get("servicems")),Double
+                .parseDouble(_options.get("servicesigma")),Double.parseDouble(_options.get("serviceslowms")),Double.parseDouble(_options
+                .get("serviceslowratio")));
+        private double _time; // Arrival time of the previous request
+
+        public SimRequest next()
+        {
+            _time += -Math.log(1 - _random.nextDouble()) * _meanIntervalMs;
+            if (_time >= _end)
+            {
+                return null;
+            }
+            return new SimRequest((long)_time,_mix.next(_random),_service.nextMs(_random));
+        }
+
+    }
+
+    // Arrivals replayed from a trace of "arrivalMs priority serviceMs" lines, in arrival order
+    private class TraceArrivals implements Arrivals
+    {
+
+        private final BufferedReader _reader;
+
+        TraceArrivals(String path) throws IOException
+        {
+            _reader = new BufferedReader(new FileReader(path));
+        }
+
+        public SimRequest next() throws IOException
+        {
+            String line;
+            while ((line = _reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                return new SimRequest(Long.parseLong(fields[0]),Integer.parseInt(fields[1]),Long.parseLong(fields[2]));
+            }
+            _reader.close();
+            return null;
+        }
+
+    }
+
+    // Schedules the next arrival, which in turn schedules the one after it
+    private void scheduleArrival(final Arrivals arrivals) throws IOException
+    {
+        final SimRequest simRequest = arrivals.next();
+        if (simRequest == null)
+        {
+            return;
+        }
+        schedule(simRequest._arrival,new Event()
+        {
+
+            @Override
+            void fire() throws Exception
+            {
+                getBucket(simRequest._arrival).recordArrival(simRequest._priority);
+                dispatch(simRequest);
+                scheduleArrival(arrivals);
+            }
+        });
+    }
+
+    /**
+     * Runs the simulation until every request has been answered
+     * @throws Exception if the filter fails or the trace cannot be read
+     */
+    public void run() throws Exception
+    {
+        _filter = new QoSFilter(_clock,_suspender);
+        _filter.init(Stubs.filterConfig(_filterParams));
+        try
+        {
+            String trace = _options.get("trace");
+            scheduleArrival((trace != null)?new TraceArrivals(trace):new SyntheticArrivals());
+            long events = 0;
+            long wallStart = System.currentTimeMillis();
+            Event event;
+            while ((event = _events.poll()) != null)
+            {
+                _clock.advanceTo(event._time);
+                event.fire();
+                events++;
+            }
+            long wallMs = System.currentTimeMillis() - wallStart;
+            System.out.println("Simulator " + _options + " filter=" + _filterParams);
+            System.out.println(events + " events over " + _lastOutcomeTime + " virtual ms in " + wallMs + " ms");
+            _recorder.report(System.out,Math.max(1,_lastOutcomeTime));
+            System.out.println();
+            reportCurves(System.out);
+        }
+        finally
+        {
+            _filter.destroy();
+        }
+    }
+
+    // Prints the per-bucket curves as CSV
+    private void reportCurves(PrintStream out)
+    {
+        out.println("time_s,priority,arrivals,goodput_rps,rejected,reject_pct,p50_ms,p99_ms");
+        double bucketSeconds = _bucketMs / 1000.0;
+        for (Map.Entry<Long,Bucket> time : _curves.entrySet())
+        {
+            Bucket bucket = time.getValue();
+            Set<Integer> priorities = new TreeSet<Integer>(bucket._arrivals.keySet());
+            priorities.addAll(bucket._outcomes.getPriorities());
+            for (Integer priority : priorities)
+            {
+                Long arrivals = bucket._arrivals.get(priority);
+                long served = bucket._outcomes.getOk(priority);
+                // Anything answered without being serviced counts as rejected
+                long rejected = bucket._outcomes.getRejected(priority) + bucket._outcomes.getErrors(priority);
+                long answered = served + rejected;
+                out.println(String.format("%.3f,%d,%d,%.1f,%d,%.2f,%d,%d",time.getKey() / 1000.0,priority,(arrivals != null)?arrivals:0,served / bucketSeconds,
+                        rejected,(answered > 0)?rejected * 100.0 / answered:0.0,bucket._outcomes.getPercentile(priority,50) / 1000,bucket._outcomes
+                        .getPercentile(priority,99) / 1000));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        new Simulator(args).run();
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.sim;
+
+import com.bn.services.utils.Clock;
+
+/**
+ * Clock whose time only moves when it is advanced, used to run the filter in simulated time
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class VirtualClock implements Clock
+{
+
+    private long _now; // Current virtual time in milliseconds
+
+    public long currentTimeMillis()
+    {
+        return _now;
+    }
+
+    /**
+     * Moves the clock forward
+     * @param now the new time; must not be earlier than the current time
+     */
+    public void advanceTo(long now)
+    {
+        if (now < _now)
+        {
+            throw new IllegalArgumentException("Virtual time cannot move backwards: " + now + " < " + _now);
+        }
+        _now = now;
+    }
+
+}
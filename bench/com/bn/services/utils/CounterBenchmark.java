@@ -0,0 +1,97 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of recording into the shared counters from one or more threads at once
+ * @author Chris Winberry | chris@winberry.net
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CounterBenchmark
+{
+
+    private RateCounter _rateCounter; // Counter shared by all benchmark threads
+    private AverageCounter _averageCounter; // Counter shared by all benchmark threads
+
+    @Setup
+    public void setup()
+    {
+        _rateCounter = new RateCounter(100,"Benchmark rate");
+        _averageCounter = new AverageCounter(100,"Benchmark average");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void rateRecord1()
+    {
+        _rateCounter.record();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void rateRecord4()
+    {
+        _rateCounter.record();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void rateRecordMax()
+    {
+        _rateCounter.record();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void averageRecord1()
+    {
+        _averageCounter.record(42);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void averageRecord4()
+    {
+        _averageCounter.record(42);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void averageRecordMax()
+    {
+        _averageCounter.record(42);
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Suspension backend that parks the dispatching thread until the request is resumed or times out. Intended for containers that dispatch requests on cheap
+ * (e.g. virtual) threads, where a waiting request costs little more than its stack. Waiting uses java.util.concurrent locks rather than monitors, so a
+ * parked virtual thread releases its carrier thread.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class BlockingSuspender implements Suspender
+{
+
+    /**
+     * @see Suspender#getSuspension(ServletRequest, ServletResponse)
+     */
+    public Suspension getSuspension(ServletRequest request, ServletResponse response)
+    {
+        return new BlockingSuspension(request,response);
+    }
+
+    // Suspension that holds the dispatching thread while the request is queued
+    private static class BlockingSuspension implements Suspension
+    {
+
+        private final ServletRequest _request; // Request being filtered, used for attribute storage
+        private final ServletResponse _response; // Response for the request
+        private final List<SuspensionListener> _listeners = new CopyOnWriteArrayList<SuspensionListener>(); // Registered event listeners
+        private final Lock _lock = new ReentrantLock(); // Guards the state below; a j.u.c lock so that a parked virtual thread does not pin its carrier
+        private final Condition _redispatch = _lock.newCondition(); // Signalled when the request is resumed
+        private long _timeout; // Number of MS a suspended request waits before timing out
+        private boolean _initial = true; // Whether the request is still on its first pass
+        private boolean _suspended; // Whether the request is waiting to be resumed
+        private boolean _resumed; // Whether the request was resumed since it was last suspended
+        private boolean _expired; // Whether the request timed out since it was last suspended
+
+        public BlockingSuspension(ServletRequest request, ServletResponse response)
+        {
+            _request = request;
+            _response = response;
+        }
+
+        public boolean isInitial()
+        {
+            _lock.lock();
+            try
+            {
+                return _initial;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        public boolean isResumed()
+        {
+            _lock.lock();
+            try
+            {
+                return _resumed;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        public boolean isExpired()
+        {
+            _lock.lock();
+            try
+            {
+                return _expired;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        public boolean isSuspended()
+        {
+            _lock.lock();
+            try
+            {
+                return _suspended;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        public void setTimeout(long timeoutMs)
+        {
+            _lock.lock();
+            try
+            {
+                _timeout = timeoutMs;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        public void suspend()
+        {
+            _lock.lock();
+            try
+            {
+                _suspended = true;
+                _resumed = false;
+                _expired = false;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        public void resume()
+        {
+            _lock.lock();
+            try
+            {
+                // A request that already timed out is picked up again by the waiting thread
+                if (_suspended)
+                {
+                    _suspended = false;
+                    _resumed = true;
+                    _redispatch.signalAll();
+                }
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        public boolean awaitRedispatch()
+        {
+            _lock.lock();
+            try
+            {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(_timeout);
+                while (_suspended && remaining > 0)
+                {
+                    try
+                    {
+                        remaining = _redispatch.awaitNanos(remaining);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                _initial = false;
+                if (!_suspended)
+                {
+                    return true;
+                }
+                _suspended = false;
+                _expired = true;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+            // Fire outside the lock so that listeners may touch the queue freely
+            for (SuspensionListener listener : _listeners)
+            {
+                listener.onTimeout(this);
+            }
+            return true;
+        }
+
+        public void endDispatch()
+        {
+            if (isSuspended())
+            {
+                return;
+            }
+            for (SuspensionListener listener : _listeners)
+            {
+                listener.onComplete(this);
+            }
+        }
+
+        public void addSuspensionListener(SuspensionListener listener)
+        {
+            _listeners.add(listener);
+        }
+
+        public ServletResponse getServletResponse()
+        {
+            return _response;
+        }
+
+        public void setAttribute(String name, Object value)
+        {
+            _request.setAttribute(name,value);
+        }
+
+        public Object getAttribute(String name)
+        {
+            return _request.getAttribute(name);
+        }
+
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+
+/**
+ * Suspension backend built on Jetty continuations. Suspended requests release their thread and are redispatched through the filter by the container. When
+ * deployed in a Servlet 3 container, ContinuationSupport transparently uses the container's async support.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class ContinuationSuspender implements Suspender
+{
+
+    private final String _attrKeySuspension = "QoSFilter@suspension@" + this.hashCode(); // Suspension handle bound to the continuation
+
+    /**
+     * @see Suspender#getSuspension(ServletRequest, ServletResponse)
+     */
+    public Suspension getSuspension(ServletRequest request, ServletResponse response)
+    {
+        Continuation continuation = ContinuationSupport.getContinuation(request);
+        // Reuse the handle across redispatches so that the queue and listeners see the same object
+        ContinuationSuspension suspension = (ContinuationSuspension)continuation.getAttribute(_attrKeySuspension);
+        if (suspension == null)
+        {
+            suspension = new ContinuationSuspension(continuation);
+            continuation.setAttribute(_attrKeySuspension,suspension);
+        }
+        return suspension;
+    }
+
+    // Adapts a Jetty continuation to the Suspension interface
+    private static class ContinuationSuspension implements Suspension
+    {
+
+        private final Continuation _continuation; // Underlying Jetty continuation
+
+        public ContinuationSuspension(Continuation continuation)
+        {
+            _continuation = continuation;
+        }
+
+        public boolean isInitial()
+        {
+            return _continuation.isInitial();
+        }
+
+        public boolean isResumed()
+        {
+            return _continuation.isResumed();
+        }
+
+        public boolean isExpired()
+        {
+            return _continuation.isExpired();
+        }
+
+        public boolean isSuspended()
+        {
+            return _continuation.isSuspended();
+        }
+
+        public void setTimeout(long timeoutMs)
+        {
+            _continuation.setTimeout(timeoutMs);
+        }
+
+        public void suspend()
+        {
+            _continuation.suspend();
+        }
+
+        public void resume()
+        {
+            _continuation.resume();
+        }
+
+        public boolean awaitRedispatch()
+        {
+            // The container redispatches the request once it is resumed or expires
+            return false;
+        }
+
+        public void endDispatch()
+        {
+            // Completion is reported by the container
+        }
+
+        public void addSuspensionListener(final SuspensionListener listener)
+        {
+            final Suspension suspension = this;
+            _continuation.addContinuationListener(new ContinuationListener()
+            {
+
+                @Override
+                public void onComplete(Continuation continuation)
+                {
+                    listener.onComplete(suspension);
+                }
+
+                @Override
+                public void onTimeout(Continuation continuation)
+                {
+                    listener.onTimeout(suspension);
+                }
+            });
+        }
+
+        public ServletResponse getServletResponse()
+        {
+            return _continuation.getServletResponse();
+        }
+
+        public void setAttribute(String name, Object value)
+        {
+            _continuation.setAttribute(name,value);
+        }
+
+        public Object getAttribute(String name)
+        {
+            return _continuation.getAttribute(name);
+        }
+
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+import com.bn.services.utils.Clock;
+
+/**
+ * In-process reference SlotCoordinator. Filters configured with the same group share one budget, so several nodes can be run against each other inside a
+ * single JVM. The budget is split max-min fairly by demand, and whatever no node demands is spread evenly on top as headroom, up to each node's limit, so
+ * that an idle node can absorb a burst before its next renewal. A node is only granted slots that no other node currently holds, so the sum of the
+ * grants never exceeds the budget.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class LocalSlotCoordinator implements SlotCoordinator
+{
+
+    // Config keys
+    private final static String INITKEY_GROUP = "coordinatorgroup";
+    private final static String INITKEY_GLOBAL_MAX_REQUESTS = "globalmaxreq";
+
+    // Defaults
+    private final static String DEFAULT_GROUP = "default"; // Group shared by filters that do not name one
+
+    private final static Map<String,Group> GROUPS = new HashMap<String,Group>(); // Budgets by group name
+
+    private Group _group; // Budget this coordinator hands out
+
+    // A node's current share of a group's budget
+    private static class Lease
+    {
+
+        Integer _demand; // Slots the node last asked for
+        Integer _limit; // Most slots the node will use, which caps its headroom
+        Integer _granted; // Slots the node currently holds
+        Long _expires; // Time after which the lease is dropped if not renewed
+
+    }
+
+    /**
+     * Global budget shared by the nodes of one group
+     */
+    public static class Group
+    {
+
+        private final Clock _clock; // Source of lease expiry times
+        private final Map<String,Lease> _leases = new HashMap<String,Lease>(); // Leases by node id
+        private Integer _budget; // Total number of slots shared by the group
+        private Boolean _available = true; // Whether the group answers requests; cleared to simulate an unreachable coordinator
+
+        Group(Integer budget, Clock clock)
+        {
+            _budget = budget;
+            _clock = clock;
+        }
+
+        /**
+         * @param budget the new total number of slots shared by the group
+         */
+        public synchronized void setBudget(Integer budget)
+        {
+            _budget = budget;
+        }
+
+        /**
+         * @return Total number of slots shared by the group
+         */
+        public synchronized Integer getBudget()
+        {
+            return _budget;
+        }
+
+        /**
+         * Makes the group unreachable or reachable again, e.g. to test how nodes fall back
+         * @param available false to fail every lease and release with an IOException
+         */
+        public synchronized void setAvailable(Boolean available)
+        {
+            _available = available;
+        }
+
+        /**
+         * @return Number of slots currently granted across all nodes
+         */
+        public synchronized Integer getGranted()
+        {
+            expireLeases();
+            Integer granted = 0;
+            for (Lease lease : _leases.values())
+            {
+                granted += lease._granted;
+            }
+            return granted;
+        }
+
+        synchronized Integer lease(String nodeId, Integer demand, Integer limit, Long leaseMs) throws IOException
+        {
+            checkAvailable();
+            expireLeases();
+            Lease lease = _leases.get(nodeId);
+            if (lease == null)
+            {
+                lease = new Lease();
+                lease._granted = 0;
+                _leases.put(nodeId,lease);
+            }
+            lease._demand = Math.max(0,demand);
+            lease._limit = Math.max(lease._demand,limit);
+            lease._expires = _clock.currentTimeMillis() + leaseMs;
+
+            // Only hand out slots that the other nodes are not holding right now; they give up any excess on their own renewal
+            Integer heldByOthers = 0;
+            for (Lease other : _leases.values())
+            {
+                if (other != lease)
+                {
+                    heldByOthers += other._granted;
+                }
+            }
+            lease._granted = Math.max(0,Math.min(targetShare(nodeId),_budget - heldByOthers));
+            return lease._granted;
+        }
+
+        synchronized void release(String nodeId) throws IOException
+        {
+            checkAvailable();
+            _leases.remove(nodeId);
+        }
+
+        // Gets the slots a node should hold: its max-min fair share by demand, plus its max-min fair share of the budget nobody demands, up to its limit
+        private Integer targetShare(String nodeId)
+        {
+            Map<String,Integer> demands = new HashMap<String,Integer>();
+            for (Map.Entry<String,Lease> entry : _leases.entrySet())
+            {
+                demands.put(entry.getKey(),entry.getValue()._demand);
+            }
+            Map<String,Integer> shares = fairShares(_budget,demands);
+
+            Integer unused = _budget;
+            Map<String,Integer> headroom = new HashMap<String,Integer>();
+            for (Map.Entry<String,Lease> entry : _leases.entrySet())
+            {
+                Integer share = shares.get(entry.getKey());
+                unused -= share;
+                headroom.put(entry.getKey(),entry.getValue()._limit - share);
+            }
+            return shares.get(nodeId) + fairShares(unused,headroom).get(nodeId);
+        }
+
+        // Splits a budget so that no node gets more than its cap and the rest is divided evenly
+        private static Map<String,Integer> fairShares(Integer budget, Map<String,Integer> caps)
+        {
+            List<Map.Entry<String,Integer>> entries = new ArrayList<Map.Entry<String,Integer>>(caps.entrySet());
+            Collections.sort(entries,new Comparator<Map.Entry<String,Integer>>()
+            {
+
+                public int compare(Map.Entry<String,Integer> a, Map.Entry<String,Integer> b)
+                {
+                    return a.getValue().compareTo(b.getValue());
+                }
+            });
+            Map<String,Integer> shares = new HashMap<String,Integer>();
+            Integer remaining = budget;
+            Integer nodesLeft = entries.size();
+            for (Map.Entry<String,Integer> entry : entries)
+            {
+                Integer share = Math.min(entry.getValue(),remaining / nodesLeft);
+                shares.put(entry.getKey(),share);
+                remaining -= share;
+                nodesLeft--;
+            }
+            return shares;
+        }
+
+        // Drops the leases of nodes that stopped renewing
+        private void expireLeases()
+        {
+            Long now = _clock.currentTimeMillis();
+            Iterator<Lease> leases = _leases.values().iterator();
+            while (leases.hasNext())
+            {
+                if (leases.next()._expires < now)
+                {
+                    leases.remove();
+                }
+            }
+        }
+
+        private void checkAvailable() throws IOException
+        {
+            if (!_available)
+            {
+                throw new IOException("Slot coordinator unavailable");
+            }
+        }
+
+    }
+
+    /**
+     * Gets the budget of a group, creating it if this is the first node to use it
+     * @param name name of the group
+     * @param budget total number of slots, used only if the group does not exist yet
+     * @param clock source of lease expiry times, used only if the group does not exist yet
+     * @return The shared group
+     */
+    public static Group getGroup(String name, Integer budget, Clock clock)
+    {
+        synchronized (GROUPS)
+        {
+            Group group = GROUPS.get(name);
+            if (group == null)
+            {
+                group = new Group(budget,clock);
+                GROUPS.put(name,group);
+            }
+            return group;
+        }
+    }
+
+    /**
+     * @see SlotCoordinator#init(FilterConfig, Clock)
+     */
+    public void init(FilterConfig filterConfig, Clock clock) throws ServletException
+    {
+        String group = filterConfig.getInitParameter(INITKEY_GROUP);
+        String budget = filterConfig.getInitParameter(INITKEY_GLOBAL_MAX_REQUESTS);
+        if (budget == null)
+        {
+            throw new ServletException(INITKEY_GLOBAL_MAX_REQUESTS + " is required by " + LocalSlotCoordinator.class.getName());
+        }
+        _group = getGroup((group != null)?group:DEFAULT_GROUP,Integer.parseInt(budget),clock);
+    }
+
+    /**
+     * @see SlotCoordinator#lease(String, Integer, Integer, Long)
+     */
+    public Integer lease(String nodeId, Integer demand, Integer limit, Long leaseMs) throws IOException
+    {
+        return _group.lease(nodeId,demand,limit,leaseMs);
+    }
+
+    /**
+     * @see SlotCoordinator#release(String)
+     */
+    public void release(String nodeId) throws IOException
+    {
+        _group.release(nodeId);
+    }
+
+}
@@ -0,0 +1,383 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidParameterException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.FilterConfig;
+
+/**
+ * Immutable snapshot of the QoSFilter limits. A new snapshot is derived from an existing one by overriding some of its parameters, and is swapped into the
+ * filter as a whole so that a request never sees a mix of old and new values.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public final class QoSConfig
+{
+
+    // Config keys
+    final static String INITKEY_MIN_PRIORITY_LEVEL = "minpriority";
+    final static String INITKEY_MAX_REQUESTS = "maxreq";
+    final static String INITKEY_MAX_QUEUE_ITEMS = "maxqueue";
+    final static String INITKEY_LOCK_TIMEOUT = "locktimeout";
+    final static String INITKEY_REQUEST_TIMEOUT = "requesttimeout";
+    final static String INITKEY_REQUEST_PRIORITY_TIMEOUT = "prioritytimeout";
+    final static String INITKEY_FAST_REJECT = "fastreject";
+    final static String INITKEY_REJECT_BODY = "rejectbody";
+    final static String INITKEY_REJECT_CONTENT_TYPE = "rejectcontenttype";
+    final static String INITKEY_REJECT_CLOSE = "rejectclose";
+    final static String INITKEY_LEVEL_MAX_QUEUE_ITEMS = "levelmaxqueue";
+    final static String INITKEY_MAX_QUEUE_BYTES = "maxqueuebytes";
+    final static String INITKEY_QUEUE_BYTES_POLICY = "queuebytespolicy";
+
+    // Ways of handling a request that would take the queue over its byte budget
+    final static String QUEUE_BYTES_POLICY_REFUSE = "refuse";
+    final static String QUEUE_BYTES_POLICY_EVICT = "evict";
+
+    // Defaults
+    private final static Integer DEFAULT_MIN_PRIORITY_LEVEL = 5; // Minimum priority level allowed on a request
+    private final static Integer DEFAULT_MAX_REQUESTS = 1; // Maximum number of concurrent requests going through filter
+    private final static Integer DEFAULT_MAX_QUEUE_ITEMS = 100; // Maximum number items allowed in the queue
+    private final static Integer DEFAULT_LOCK_TIMEOUT = 50; // Number of MS for a request to wait for a permit from the semaphore
+    private final static Integer DEFAULT_REQUEST_TIMEOUT = 2000; // Number of MS before a pending request is killed off
+    private final static Integer DEFAULT_REQUEST_PRIORITY_TIMEOUT = 500; // Number of MS for a request to wait at a given priority level
+    private final static Boolean DEFAULT_FAST_REJECT = false; // Whether rejections bypass the container's error page handling
+    private final static String DEFAULT_REJECT_BODY = "Service Unavailable\n"; // Body written by the fast rejection path
+    private final static String DEFAULT_REJECT_CONTENT_TYPE = "text/plain; charset=UTF-8"; // Content type of the fast rejection body
+    private final static Boolean DEFAULT_REJECT_CLOSE = false; // Whether rejections ask for the connection to be closed
+    private final static String DEFAULT_LEVEL_MAX_QUEUE_ITEMS = ""; // Maximum number of items per priority level; empty entries are unlimited
+    private final static Long DEFAULT_MAX_QUEUE_BYTES = 0L; // Estimated heap the queued requests may retain; 0 disables the budget
+    private final static String DEFAULT_QUEUE_BYTES_POLICY = QUEUE_BYTES_POLICY_REFUSE; // What to do when the byte budget is exceeded
+
+    /**
+     * Configuration made up entirely of the default values
+     */
+    public final static QoSConfig DEFAULTS = new QoSConfig();
+
+    // Configuration
+    private final Integer _minPriorityLevel; // Minimum priority level allowed on a request
+    private final Integer _maxRequests; // Maximum number of concurrent requests going through filter
+    private final Integer _maxQueueItems; // Maximum number items allowed in the queue
+    private final Integer _lockTimeout; // Number of MS for a request to wait for a permit from the semaphore
+    private final Integer _requestTimeout; // Number of MS before a pending request is killed off
+    private final Integer _requestPriorityTimeout; // Number of MS for a request to wait at a given priority level
+    private final Boolean _fastReject; // Whether rejections bypass the container's error page handling
+    private final byte[] _rejectBody; // Pre-rendered body written by the fast rejection path; shared by all rejections
+    private final String _rejectContentType; // Content type of the fast rejection body
+    private final Boolean _rejectClose; // Whether rejections ask for the connection to be closed
+    private final String _levelMaxQueueItemsValue; // Raw per-level queue limits, as configured
+    private final Integer[] _levelMaxQueueItems; // Maximum number of items per priority level, indexed from MAX_PRIORITY_LEVEL; null is unlimited
+    private final Long _maxQueueBytes; // Estimated heap the queued requests may retain; 0 disables the budget
+    private final String _queueBytesPolicy; // What to do when the byte budget is exceeded
+
+    // Builds the default configuration
+    private QoSConfig()
+    {
+        _minPriorityLevel = DEFAULT_MIN_PRIORITY_LEVEL;
+        _maxRequests = DEFAULT_MAX_REQUESTS;
+        _maxQueueItems = DEFAULT_MAX_QUEUE_ITEMS;
+        _lockTimeout = DEFAULT_LOCK_TIMEOUT;
+        _requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+        _requestPriorityTimeout = DEFAULT_REQUEST_PRIORITY_TIMEOUT;
+        _fastReject = DEFAULT_FAST_REJECT;
+        _rejectBody = encode(DEFAULT_REJECT_BODY);
+        _rejectContentType = DEFAULT_REJECT_CONTENT_TYPE;
+        _rejectClose = DEFAULT_REJECT_CLOSE;
+        _levelMaxQueueItemsValue = DEFAULT_LEVEL_MAX_QUEUE_ITEMS;
+        _levelMaxQueueItems = parseLevelLimits(DEFAULT_LEVEL_MAX_QUEUE_ITEMS);
+        _maxQueueBytes = DEFAULT_MAX_QUEUE_BYTES;
+        _queueBytesPolicy = DEFAULT_QUEUE_BYTES_POLICY;
+    }
+
+    // Builds a configuration from a base configuration and a set of raw parameter values that override it
+    private QoSConfig(QoSConfig base, Map<String,String> params)
+    {
+        _minPriorityLevel = getInteger(params,INITKEY_MIN_PRIORITY_LEVEL,base._minPriorityLevel);
+        _maxRequests = getInteger(params,INITKEY_MAX_REQUESTS,base._maxRequests);
+        _maxQueueItems = getInteger(params,INITKEY_MAX_QUEUE_ITEMS,base._maxQueueItems);
+        _lockTimeout = getInteger(params,INITKEY_LOCK_TIMEOUT,base._lockTimeout);
+        _requestTimeout = getInteger(params,INITKEY_REQUEST_TIMEOUT,base._requestTimeout);
+        _requestPriorityTimeout = getInteger(params,INITKEY_REQUEST_PRIORITY_TIMEOUT,base._requestPriorityTimeout);
+        _fastReject = getBoolean(params,INITKEY_FAST_REJECT,base._fastReject);
+        _rejectBody = params.containsKey(INITKEY_REJECT_BODY)?encode(params.get(INITKEY_REJECT_BODY)):base._rejectBody;
+        _rejectContentType = getString(params,INITKEY_REJECT_CONTENT_TYPE,base._rejectContentType);
+        _rejectClose = getBoolean(params,INITKEY_REJECT_CLOSE,base._rejectClose);
+        _levelMaxQueueItemsValue = getString(params,INITKEY_LEVEL_MAX_QUEUE_ITEMS,base._levelMaxQueueItemsValue);
+        _levelMaxQueueItems = parseLevelLimits(_levelMaxQueueItemsValue);
+        _maxQueueBytes = params.containsKey(INITKEY_MAX_QUEUE_BYTES)?Long.parseLong(params.get(INITKEY_MAX_QUEUE_BYTES).trim()):base._maxQueueBytes;
+        _queueBytesPolicy = getString(params,INITKEY_QUEUE_BYTES_POLICY,base._queueBytesPolicy).trim();
+
+        if (_minPriorityLevel < 1)
+        {
+            throw new InvalidParameterException(INITKEY_MIN_PRIORITY_LEVEL + " must be > 0");
+        }
+        if (_maxRequests < 0)
+        {
+            throw new InvalidParameterException(INITKEY_MAX_REQUESTS + " must be >= 0");
+        }
+        if (!_queueBytesPolicy.equals(QUEUE_BYTES_POLICY_REFUSE) && !_queueBytesPolicy.equals(QUEUE_BYTES_POLICY_EVICT))
+        {
+            throw new InvalidParameterException(INITKEY_QUEUE_BYTES_POLICY + " must be " + QUEUE_BYTES_POLICY_REFUSE + " or " + QUEUE_BYTES_POLICY_EVICT);
+        }
+    }
+
+    // Gets an integer parameter value, falling back to a default if the parameter is not set
+    private static Integer getInteger(Map<String,String> params, String key, Integer defaultValue)
+    {
+        String value = params.get(key);
+        return (value != null)?Integer.parseInt(value.trim()):defaultValue;
+    }
+
+    // Gets a boolean parameter value, falling back to a default if the parameter is not set
+    private static Boolean getBoolean(Map<String,String> params, String key, Boolean defaultValue)
+    {
+        String value = params.get(key);
+        return (value != null)?Boolean.parseBoolean(value.trim()):defaultValue;
+    }
+
+    // Gets a string parameter value, falling back to a default if the parameter is not set
+    private static String getString(Map<String,String> params, String key, String defaultValue)
+    {
+        String value = params.get(key);
+        return (value != null)?value:defaultValue;
+    }
+
+    // Parses a comma separated list of per-level limits, highest priority first; empty entries are unlimited
+    private static Integer[] parseLevelLimits(String value)
+    {
+        String[] entries = value.split(",");
+        Integer[] limits = new Integer[entries.length];
+        for (Integer i = 0; i < entries.length; i++)
+        {
+            String entry = entries[i].trim();
+            limits[i] = (entry.length() > 0)?Integer.parseInt(entry):null;
+        }
+        return limits;
+    }
+
+    // Renders a response body to bytes once so that rejections do not have to
+    private static byte[] encode(String body)
+    {
+        try
+        {
+            return body.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a new configuration with some of the parameters of this one replaced
+     * @param params raw parameter values keyed by init-param name; parameters not present keep their current value
+     * @return New configuration
+     */
+    public QoSConfig override(Map<String,String> params)
+    {
+        return new QoSConfig(this,params);
+    }
+
+    /**
+     * Creates a new configuration with a single parameter of this one replaced
+     * @param key init-param name of the parameter
+     * @param value raw value of the parameter
+     * @return New configuration
+     */
+    public QoSConfig override(String key, String value)
+    {
+        Map<String,String> params = new HashMap<String,String>();
+        params.put(key,value);
+        return override(params);
+    }
+
+    /**
+     * Creates a new configuration with the parameters defined in a properties file replaced
+     * @param properties properties keyed by init-param name
+     * @return New configuration
+     */
+    public QoSConfig override(Properties properties)
+    {
+        Map<String,String> params = new HashMap<String,String>();
+        for (String key : properties.stringPropertyNames())
+        {
+            params.put(key,properties.getProperty(key));
+        }
+        return override(params);
+    }
+
+    /**
+     * Creates a new configuration with the parameters defined in the filter's init-params replaced
+     * @param filterConfig config of the filter
+     * @return New configuration
+     */
+    public QoSConfig override(FilterConfig filterConfig)
+    {
+        Map<String,String> params = new HashMap<String,String>();
+        @SuppressWarnings("rawtypes")
+        Enumeration names = filterConfig.getInitParameterNames();
+        while (names.hasMoreElements())
+        {
+            String name = (String)names.nextElement();
+            params.put(name,filterConfig.getInitParameter(name));
+        }
+        return override(params);
+    }
+
+    /**
+     * @return Minimum priority level allowed on a request, which is also the number of priority levels
+     */
+    public Integer getMinPriorityLevel()
+    {
+        return _minPriorityLevel;
+    }
+
+    /**
+     * @return Maximum number of concurrent requests going through filter
+     */
+    public Integer getMaxRequests()
+    {
+        return _maxRequests;
+    }
+
+    /**
+     * @return Maximum number items allowed in the queue
+     */
+    public Integer getMaxQueueItems()
+    {
+        return _maxQueueItems;
+    }
+
+    /**
+     * @return Number of MS for a request to wait for a permit from the semaphore
+     */
+    public Integer getLockTimeout()
+    {
+        return _lockTimeout;
+    }
+
+    /**
+     * @return Number of MS before a pending request is killed off
+     */
+    public Integer getRequestTimeout()
+    {
+        return _requestTimeout;
+    }
+
+    /**
+     * @return Number of MS for a request to wait at a given priority level
+     */
+    public Integer getRequestPriorityTimeout()
+    {
+        return _requestPriorityTimeout;
+    }
+
+    /**
+     * @return Whether rejections are written directly instead of going through the container's error page handling
+     */
+    public Boolean getFastReject()
+    {
+        return _fastReject;
+    }
+
+    /**
+     * Gets the pre-rendered rejection body. The array is shared by every rejection and must not be modified.
+     * @return Body written by the fast rejection path
+     */
+    public byte[] getRejectBody()
+    {
+        return _rejectBody;
+    }
+
+    /**
+     * @return Content type of the fast rejection body
+     */
+    public String getRejectContentType()
+    {
+        return _rejectContentType;
+    }
+
+    /**
+     * @return Whether rejections ask for the connection to be closed
+     */
+    public Boolean getRejectClose()
+    {
+        return _rejectClose;
+    }
+
+    /**
+     * @return Per-level queue limits as configured, highest priority first
+     */
+    public String getLevelMaxQueueItems()
+    {
+        return _levelMaxQueueItemsValue;
+    }
+
+    /**
+     * Gets the maximum number of requests that may wait at a priority level when a new request arrives there; requests aging into the level are not held
+     * to it
+     * @param priority the priority level
+     * @return Maximum number of items for the level, or Integer.MAX_VALUE if only the overall limit applies
+     */
+    public Integer getLevelMaxQueueItems(Integer priority)
+    {
+        Integer index = priority - 1;
+        if (index < 0 || index >= _levelMaxQueueItems.length || _levelMaxQueueItems[index] == null)
+        {
+            return Integer.MAX_VALUE;
+        }
+        return _levelMaxQueueItems[index];
+    }
+
+    /**
+     * @return Estimated heap in bytes the queued requests may retain; 0 if the budget is disabled
+     */
+    public Long getMaxQueueBytes()
+    {
+        return _maxQueueBytes;
+    }
+
+    /**
+     * @return Whether lower priority requests are evicted, rather than the new request refused, when the byte budget is exceeded
+     */
+    public Boolean getEvictOnQueueBytes()
+    {
+        return _queueBytesPolicy.equals(QUEUE_BYTES_POLICY_EVICT);
+    }
+
+    /**
+     * @return What to do when the byte budget is exceeded, refuse or evict
+     */
+    public String getQueueBytesPolicy()
+    {
+        return _queueBytesPolicy;
+    }
+
+    @Override
+    public String toString()
+    {
+        return INITKEY_MIN_PRIORITY_LEVEL + "=" + _minPriorityLevel + " " + INITKEY_MAX_REQUESTS + "=" + _maxRequests + " " + INITKEY_MAX_QUEUE_ITEMS + "="
+                + _maxQueueItems + " " + INITKEY_LOCK_TIMEOUT + "=" + _lockTimeout + " " + INITKEY_REQUEST_TIMEOUT + "=" + _requestTimeout + " "
+                + INITKEY_REQUEST_PRIORITY_TIMEOUT + "=" + _requestPriorityTimeout + " " + INITKEY_FAST_REJECT + "=" + _fastReject + " " + INITKEY_REJECT_CLOSE + "="
+                + _rejectClose + " " + INITKEY_LEVEL_MAX_QUEUE_ITEMS + "=" + _levelMaxQueueItemsValue + " " + INITKEY_MAX_QUEUE_BYTES + "=" + _maxQueueBytes + " "
+                + INITKEY_QUEUE_BYTES_POLICY + "=" + _queueBytesPolicy;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+/**
+ * Receives QoSFilter's admission, queueing, aging and rejection decisions, e.g. to record them as profiling events. Implementations must be cheap when
+ * isEnabled() returns false, since the filter calls them on every request.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public interface QoSEvents
+{
+
+    /**
+     * Rejection reason for a request that did not fit in the queue
+     */
+    public final static String REJECT_QUEUE_FULL = "queue_full";
+
+    /**
+     * Rejection reason for a request that waited longer than the request timeout
+     */
+    public final static String REJECT_EXPIRED = "expired";
+
+    /**
+     * Rejection reason for a request evicted from the queue to make room for a higher priority one
+     */
+    public final static String REJECT_EVICTED = "evicted";
+
+    /**
+     * Sink that discards every event
+     */
+    public final static QoSEvents NONE = new QoSEvents()
+    {
+
+        public boolean isEnabled()
+        {
+            return false;
+        }
+
+        public void admitted(int priority, int queueDepth)
+        {
+        }
+
+        public void queued(int priority, int originalPriority, long waitTime, int queueDepth)
+        {
+        }
+
+        public void aged(int priority, int originalPriority, long waitTime, int queueDepth)
+        {
+        }
+
+        public void resumed(int priority, int originalPriority, long waitTime, int queueDepth)
+        {
+        }
+
+        public void rejected(int priority, int originalPriority, long waitTime, int queueDepth, String reason)
+        {
+        }
+
+        public void timedOut(int priority, int originalPriority, long waitTime, int queueDepth)
+        {
+        }
+
+        public void completed(int priority, int originalPriority, long waitTime, long responseTime, int queueDepth)
+        {
+        }
+    };
+
+    /**
+     * Tells the filter whether to gather the event fields at all; the filter skips every other call while this returns false
+     * @return true if events are currently being recorded
+     */
+    public boolean isEnabled();
+
+    /**
+     * A request was dispatched without being queued
+     * @param priority priority level of the request
+     * @param queueDepth number of requests queued at the time
+     */
+    public void admitted(int priority, int queueDepth);
+
+    /**
+     * A request was added to the queue, either on arrival or after aging
+     * @param priority priority level the request was queued at
+     * @param originalPriority priority level the request arrived with
+     * @param waitTime number of MS the request has waited so far
+     * @param queueDepth number of requests queued, including this one
+     */
+    public void queued(int priority, int originalPriority, long waitTime, int queueDepth);
+
+    /**
+     * A request's priority timeout ran out and it was bumped up one level
+     * @param priority priority level the request was bumped to
+     * @param originalPriority priority level the request arrived with
+     * @param waitTime number of MS the request has waited so far
+     * @param queueDepth number of requests queued at the time
+     */
+    public void aged(int priority, int originalPriority, long waitTime, int queueDepth);
+
+    /**
+     * A queued request was given a slot and resumed
+     * @param priority priority level the request was taken from
+     * @param originalPriority priority level the request arrived with
+     * @param waitTime number of MS the request waited in the queue
+     * @param queueDepth number of requests still queued
+     */
+    public void resumed(int priority, int originalPriority, long waitTime, int queueDepth);
+
+    /**
+     * A request was answered with a 503
+     * @param priority priority level of the request
+     * @param originalPriority priority level the request arrived with
+     * @param waitTime number of MS the request waited before being rejected
+     * @param queueDepth number of requests queued at the time
+     * @param reason one of REJECT_QUEUE_FULL, REJECT_EXPIRED or REJECT_EVICTED
+     */
+    public void rejected(int priority, int originalPriority, long waitTime, int queueDepth, String reason);
+
+    /**
+     * A suspended request timed out and was taken off the queue, to be aged or expired on its next pass
+     * @param priority priority level the request was queued at
+     * @param originalPriority priority level the request arrived with
+     * @param waitTime number of MS the request has waited so far
+     * @param queueDepth number of requests queued at the time
+     */
+    public void timedOut(int priority, int originalPriority, long waitTime, int queueDepth);
+
+    /**
+     * A request finished being serviced after going through admission
+     * @param priority priority level the request was serviced at
+     * @param originalPriority priority level the request arrived with
+     * @param waitTime number of MS the request waited in the queue
+     * @param responseTime number of MS the request took to be serviced
+     * @param queueDepth number of requests queued at the time
+     */
+    public void completed(int priority, int originalPriority, long waitTime, long responseTime, int queueDepth);
+
+}
@@ -15,15 +15,27 @@
 
 package com.bn.services.filters;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -36,12 +48,11 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
-import org.eclipse.jetty.continuation.Continuation;
-import org.eclipse.jetty.continuation.ContinuationListener;
-import org.eclipse.jetty.continuation.ContinuationSupport;
 
 import com.bn.services.utils.AverageCounter;
+import com.bn.services.utils.Clock;
 import com.bn.services.utils.RateCounter;
+import com.bn.services.utils.ResizableSemaphore;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,36 +61,54 @@ import org.slf4j.LoggerFactory;
  * QoS Servlet Filter based on request priority levels
  * @author Chris Winberry | chris@winberry.net
  */
-public class QoSFilter implements Filter
+public class QoSFilter implements Filter, QoSFilterMBean
 {
 
     // Defines
     private final static Integer MAX_PRIORITY_LEVEL = 1; // The highest priority level for a request
     private final static Integer MAGIC_PRIORITY_LEVEL = 0; // Special priority level that bypasses the queue and pool limits
+    private final static String HEADER_RETRY_AFTER = "Retry-After";
+    private final static String HEADER_CONNECTION = "Connection";
+    private final static Long REQUEST_BASE_COST = 2048L; // Estimated heap retained by a suspended request before its headers and body
     
-    // Config keys
-    private final static String INITKEY_MIN_PRIORITY_LEVEL = "minpriority";
-    private final static String INITKEY_MAX_REQUESTS = "maxreq";
-    private final static String INITKEY_MAX_QUEUE_ITEMS = "maxqueue";
-    private final static String INITKEY_LOCK_TIMEOUT = "locktimeout";
-    private final static String INITKEY_REQUEST_TIMEOUT = "requesttimeout";
-    private final static String INITKEY_REQUEST_PRIORITY_TIMEOUT = "prioritytimeout";
+    // Config keys (the limits themselves are defined by QoSConfig)
+    private final static String INITKEY_SUSPENDER = "suspension";
+    private final static String INITKEY_CONFIG_FILE = "configfile";
+    private final static String INITKEY_CONFIG_POLL_INTERVAL = "configpoll";
+    private final static String INITKEY_COORDINATOR = "coordinator";
+    private final static String INITKEY_NODE_ID = "nodeid";
+    private final static String INITKEY_LEASE_TIME = "leasems";
+    private final static String INITKEY_LEASE_RENEW_INTERVAL = "renewms";
+    private final static String INITKEY_FALLBACK_MAX_REQUESTS = "fallbackmaxreq";
+    private final static String INITKEY_EVENTS = "events";
+
+    // Slot coordinators selectable by name
+    private final static String COORDINATOR_LOCAL = "local";
+
+    // Suspension backends selectable by name
+    private final static String SUSPENDER_CONTINUATION = "continuation";
+    private final static String SUSPENDER_BLOCKING = "blocking";
+    private final static String SUSPENDER_ASYNC = "async";
+    private final static String ASYNC_CONTEXT_CLASS = "javax.servlet.AsyncContext"; // Present only in Servlet 3 containers
+    private final static String ASYNC_SUSPENDER_CLASS = "com.bn.services.filters.async.AsyncContextSuspender"; // Loaded by name so the filter runs on Servlet 2.5
+
+    // Event sinks selectable by name
+    private final static String EVENTS_JFR = "jfr";
+    private final static String EVENTS_NONE = "none";
+    private final static String JFR_EVENT_CLASS = "jdk.jfr.Event"; // Present only on JVMs that have Flight Recorder
+    private final static String JFR_EVENTS_CLASS = "com.bn.services.filters.jfr.JfrQoSEvents"; // Loaded by name so the filter runs on JVMs without jdk.jfr
 
     // Defaults
-    private final static Integer DEFAULT_MIN_PRIORITY_LEVEL = 5; // Minimum priority level allowed on a request
-    private final static Integer DEFAULT_MAX_REQUESTS = 1; // Maximum number of concurrent requests going through filter
-    private final static Integer DEFAULT_MAX_QUEUE_ITEMS = 100; // Maximum number items allowed in the queue
-    private final static Integer DEFAULT_LOCK_TIMEOUT = 50; // Number of MS for a request to wait for a permit from the semaphore
-    private final static Integer DEFAULT_REQUEST_TIMEOUT = 2000; // Number of MS before a pending request is killed off
-    private final static Integer DEFAULT_REQUEST_PRIORITY_TIMEOUT = 500; // Number of MS for a request to wait at a given priority level
+    private final static String DEFAULT_SUSPENDER = SUSPENDER_CONTINUATION; // Backend used to suspend queued requests
+    private final static Integer DEFAULT_CONFIG_POLL_INTERVAL = 5000; // Number of MS between checks of the config file for changes
+    private final static Long DEFAULT_LEASE_TIME = 10000L; // Number of MS a slot lease is trusted without being renewed
+    private final static Integer DEFAULT_LEASE_RENEW_INTERVAL = 1000; // Number of MS between slot lease renewals
+    private final static Integer DEFAULT_FALLBACK_MAX_REQUESTS = 1; // Request slots used while no valid slot lease is held
+    private final static String DEFAULT_EVENTS = EVENTS_JFR; // Event sink; costs a volatile read per decision while no recording is running
 
     // Configuration
-    private Integer _MIN_PRIORITY_LEVEL; // Minimum priority level allowed on a request
-    private Integer _MAX_REQUESTS; // Maximum number of concurrent requests going through filter
-    private Integer _MAX_QUEUE_ITEMS; // Maximum number items allowed in the queue
-    private Integer _LOCK_TIMEOUT; // Number of MS for a request to wait for a permit from the semaphore
-    private Integer _REQUEST_TIMEOUT; // Number of MS before a pending request is killed off
-    private Integer _REQUEST_PRIORITY_TIMEOUT; // Number of MS for a request to wait at a given priority level
+    private volatile QoSConfig _config; // Current limits; replaced as a whole on reconfiguration
+    private final Object _reconfigureLock = new Object(); // Serializes reconfiguration and queue migration
 
     // Request attribute keys
     private final String _attrKeyRequestStartTime = "QoSFilter@start_time@" + this.hashCode(); // Time at which request originally came in
@@ -87,14 +116,25 @@ public class QoSFilter implements Filter
     private final String _attrKeyOriginalPriority = "QoSFilter@original_priority@" + this.hashCode(); // Current request priority level
     private final String _attrKeyCurrentPriority = "QoSFilter@current_priority@" + this.hashCode(); // Original request priority level
     private final String _attrKeyExpired = "QoSFilter@expired@" + this.hashCode(); // Flag indicating whether the request timed out
+    private final String _attrKeyEvicted = "QoSFilter@evicted@" + this.hashCode(); // Flag indicating whether the request was evicted from the queue
+    private final String _attrKeyQueueCost = "QoSFilter@queue_cost@" + this.hashCode(); // Estimated heap retained by the request while queued
 
     // Misc
-    private Semaphore _requestSlots; // Tracks number of currently handled requests
-    private ContinuationListener _continuationListener; // Handles timeout/completion events of a continuation
-    private LinkedBlockingQueue<Continuation>[] _requestQueue; // Array of queues (one per priority level) that hold waiting requests
+    private ResizableSemaphore _requestSlots; // Tracks number of currently handled requests
+    private Suspender _suspender; // Backend used to suspend and resume queued requests
+    private final Clock _clock; // Source of all request timings
+    private QoSEvents _events; // Receives admission, queueing and rejection decisions for profiling
+    private SuspensionListener _suspensionListener; // Handles timeout/completion events of a suspended request
+    private volatile LinkedBlockingQueue<Suspension>[] _requestQueue; // Array of queues (one per priority level) that hold waiting requests
     private Integer _queueSize; // Tracks the count items in all the queues. Used to determine if an attempt bypass the queue should be made
+    private final AtomicLong _queueBytes = new AtomicLong(); // Estimated heap retained by all queued requests
     private RateCounter _requestRateCounter; // Tracks requests/sec
     private AverageCounter _reponseTimeCounter; // Tracks average response time
+    private ObjectName _mbeanName; // Name under which the filter is registered with JMX
+    private Timer _timer; // Runs the config file watcher and slot lease renewals
+    private SlotLease _slotLease; // Share of the cluster-wide slot budget; null if slots are not coordinated
+    private volatile Integer _slotLeaseDemand = 0; // Demand reported with the last slot lease renewal
+    private final AtomicBoolean _slotLeaseRenewPending = new AtomicBoolean(); // Whether an early slot lease renewal is already scheduled
     private static final Logger LOGGER = LoggerFactory.getLogger(QoSFilter.class); // slf4j logger
 
     /**
@@ -102,72 +142,80 @@ public class QoSFilter implements Filter
      */
     public QoSFilter()
     {
+        this(Clock.SYSTEM,null);
+    }
+
+    /**
+     * Creates a filter that takes its time from the given clock and suspends requests with the given backend, e.g. to run it in a simulation
+     * @param clock source of all request timings
+     * @param suspender backend used to suspend queued requests; null to use the one named in the config
+     */
+    public QoSFilter(Clock clock, Suspender suspender)
+    {
+        _clock = clock;
+        _suspender = suspender;
     }
 
     /**
      * @see Filter#init(FilterConfig)
      */
-    @SuppressWarnings("unchecked")
     public void init(FilterConfig filterConfig) throws ServletException
     {
         String tmpConfigValue; // Holds the raw init-param values from the config
 
         // Override the defaults with anything defined in the filter parameters
-        tmpConfigValue = filterConfig.getInitParameter(INITKEY_MIN_PRIORITY_LEVEL);
-        _MIN_PRIORITY_LEVEL = (tmpConfigValue != null)?Integer.parseInt(tmpConfigValue):DEFAULT_MIN_PRIORITY_LEVEL;
-
-        tmpConfigValue = filterConfig.getInitParameter(INITKEY_MAX_REQUESTS);
-        _MAX_REQUESTS = (tmpConfigValue != null)?Integer.parseInt(tmpConfigValue):DEFAULT_MAX_REQUESTS;
-
-        tmpConfigValue = filterConfig.getInitParameter(INITKEY_MAX_QUEUE_ITEMS);
-        _MAX_QUEUE_ITEMS = (tmpConfigValue != null)?Integer.parseInt(tmpConfigValue):DEFAULT_MAX_QUEUE_ITEMS;
-
-        tmpConfigValue = filterConfig.getInitParameter(INITKEY_LOCK_TIMEOUT);
-        _LOCK_TIMEOUT = (tmpConfigValue != null)?Integer.parseInt(tmpConfigValue):DEFAULT_LOCK_TIMEOUT;
+        try
+        {
+            _config = QoSConfig.DEFAULTS.override(filterConfig);
+        }
+        catch (RuntimeException e)
+        {
+            throw new ServletException("Invalid QoSFilter configuration",e);
+        }
 
-        tmpConfigValue = filterConfig.getInitParameter(INITKEY_REQUEST_TIMEOUT);
-        _REQUEST_TIMEOUT = (tmpConfigValue != null)?Integer.parseInt(tmpConfigValue):DEFAULT_REQUEST_TIMEOUT;
+        if (_suspender == null)
+        {
+            tmpConfigValue = filterConfig.getInitParameter(INITKEY_SUSPENDER);
+            _suspender = createSuspender((tmpConfigValue != null)?tmpConfigValue:DEFAULT_SUSPENDER);
+        }
 
-        tmpConfigValue = filterConfig.getInitParameter(INITKEY_REQUEST_PRIORITY_TIMEOUT);
-        _REQUEST_PRIORITY_TIMEOUT = (tmpConfigValue != null)?Integer.parseInt(tmpConfigValue):DEFAULT_REQUEST_PRIORITY_TIMEOUT;
+        tmpConfigValue = filterConfig.getInitParameter(INITKEY_EVENTS);
+        _events = createEvents((tmpConfigValue != null)?tmpConfigValue:DEFAULT_EVENTS);
 
         // Dump out the effective config parameters
-        LOGGER.info("_MIN_PRIORITY_LEVEL: " + _MIN_PRIORITY_LEVEL);
-        LOGGER.info("_MAX_REQUESTS: " + _MAX_REQUESTS);
-        LOGGER.info("_MAX_QUEUE_ITEMS: " + _MAX_QUEUE_ITEMS);
-        LOGGER.info("_LOCK_TIMEOUT: " + _LOCK_TIMEOUT);
-        LOGGER.info("_REQUEST_TIMEOUT: " + _REQUEST_TIMEOUT);
-        LOGGER.info("_REQUEST_PRIORITY_TIMEOUT: " + _REQUEST_PRIORITY_TIMEOUT);
+        LOGGER.info("_config: " + _config);
+        LOGGER.info("_suspender: " + _suspender.getClass().getName());
+        LOGGER.info("_events: " + _events.getClass().getName());
 
         _queueSize = 0;
 
-        _requestSlots = new Semaphore(_MAX_REQUESTS,true);
+        _requestSlots = new ResizableSemaphore(_config.getMaxRequests(),true);
 
-        // Populate array with queues
-        _requestQueue = new LinkedBlockingQueue[_MIN_PRIORITY_LEVEL];
-        for (Integer i = 0; i <= (_MIN_PRIORITY_LEVEL - MAX_PRIORITY_LEVEL); i++)
-        {
-            _requestQueue[i] = new LinkedBlockingQueue<Continuation>();
-        }
+        _requestQueue = createQueues(_config.getMinPriorityLevel());
 
         final QoSFilter filter = this;
         // Handles events fired by each request that comes through
-        _continuationListener = new ContinuationListener()
+        _suspensionListener = new SuspensionListener()
         {
 
             @Override
-            public void onComplete(Continuation continuation)
+            public void onComplete(Suspension continuation)
             {
                 // Record the wait and service time
-                Long now = System.currentTimeMillis();
+                Long now = _clock.currentTimeMillis();
                 Long startTime = filter.getRequestStartTime(continuation);
                 Long serviceTime = filter.getRequestServiceTime(continuation);
 
-                // Check if the request is expired (waited longer than _REQUEST_TIMEOUT for a slot)
+                // Check if the request is expired (waited longer than requesttimeout for a slot)
                 if (!filter.getRequestExpired(continuation))
                 {
                     _requestRateCounter.record();
                     _reponseTimeCounter.record((int)(now - serviceTime));
+                    if (_events.isEnabled() && startTime > 0)
+                    {
+                        _events.completed(filter.getRequestCurrentPriority(continuation),filter.getRequestOriginalPriority(continuation),
+                                serviceTime - startTime,now - serviceTime,_queueSize);
+                    }
                     LOGGER.info("REQUEST TIME" + " wait:" + (serviceTime - startTime) + " response:" + (now - serviceTime) + " expired:no" + " requestRate:"
                             + _requestRateCounter.getCounter() + "r/s" + " avgResponse:" + _reponseTimeCounter.getCounter() + "ms");
                     // It was not expired so it occupied a request slot
@@ -183,116 +231,539 @@ public class QoSFilter implements Filter
             }
 
             @Override
-            public void onTimeout(Continuation continuation)
+            public void onTimeout(Suspension continuation)
             {
                 // Request did not get serviced. Remove from queue and it will get picked up again
                 filter.removeFromQueue(continuation);
+                if (_events.isEnabled())
+                {
+                    _events.timedOut(filter.getRequestCurrentPriority(continuation),filter.getRequestOriginalPriority(continuation),
+                            filter.getRequestWaitTime(continuation),_queueSize);
+                }
             }
         };
 
-        _requestRateCounter = new RateCounter(100,"Average requests per second");
+        _requestRateCounter = new RateCounter(100,"Average requests per second",_clock);
         _reponseTimeCounter = new AverageCounter(100,"Average response time");
+
+        registerMBean(filterConfig.getFilterName());
+
+        tmpConfigValue = filterConfig.getInitParameter(INITKEY_COORDINATOR);
+        if (tmpConfigValue != null)
+        {
+            startSlotLease(filterConfig,createSlotCoordinator(tmpConfigValue,filterConfig));
+        }
+
+        tmpConfigValue = filterConfig.getInitParameter(INITKEY_CONFIG_FILE);
+        if (tmpConfigValue != null)
+        {
+            String pollInterval = filterConfig.getInitParameter(INITKEY_CONFIG_POLL_INTERVAL);
+            watchConfigFile(new File(tmpConfigValue),(pollInterval != null)?Integer.parseInt(pollInterval):DEFAULT_CONFIG_POLL_INTERVAL);
+        }
     }
 
-    @Override
-    public void destroy()
+    /**
+     * Swaps in a new set of limits while the filter is running. Request slots are resized without losing permits held by in-flight requests, and queued
+     * requests are moved to new queues if the number of priority levels changes.
+     * @param config the new configuration
+     */
+    public void reconfigure(QoSConfig config)
     {
+        synchronized (_reconfigureLock)
+        {
+            QoSConfig oldConfig = _config;
+            _config = config;
+
+            _requestSlots.resize(getEffectiveMaxRequests());
+            if (!config.getMinPriorityLevel().equals(oldConfig.getMinPriorityLevel()))
+            {
+                migrateQueues(config.getMinPriorityLevel());
+            }
+            LOGGER.info("_config: " + config);
+        }
+        // Newly added slots can be handed to waiting requests right away
+        processQueue();
     }
 
     /**
-     * @see Filter#doFilter(ServletRequest, ServletResponse, FilterChain)
+     * Gets the limits currently in effect
+     * @return Current configuration snapshot
      */
-    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+    public QoSConfig getConfig()
+    {
+        return _config;
+    }
+
+    // Applies a single parameter change made through JMX
+    private void reconfigure(String key, Integer value)
+    {
+        synchronized (_reconfigureLock)
+        {
+            reconfigure(_config.override(key,String.valueOf(value)));
+        }
+    }
+
+    // Registers the filter with the platform MBean server so its limits can be changed at runtime
+    private void registerMBean(String filterName)
     {
         try
         {
-            Continuation continuation = ContinuationSupport.getContinuation(request);
+            _mbeanName = new ObjectName("com.bn.services.filters:type=QoSFilter,name=" + ObjectName.quote((filterName != null)?filterName:"QoSFilter"));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,_mbeanName);
+        }
+        catch (Exception e)
+        {
+            LOGGER.warn("Unable to register QoSFilter MBean",e);
+            _mbeanName = null;
+        }
+    }
 
-            // If the request is resumed and not timed out, service it
-            if (continuation.isResumed() && !continuation.isExpired())
+    // Instantiates the slot coordinator named in the config, either a built-in name or a SlotCoordinator class name
+    private SlotCoordinator createSlotCoordinator(String name, FilterConfig filterConfig) throws ServletException
+    {
+        SlotCoordinator coordinator;
+        if (COORDINATOR_LOCAL.equals(name))
+        {
+            coordinator = new LocalSlotCoordinator();
+        }
+        else
+        {
+            try
             {
-                setRequestServiceTime(continuation);
-                chain.doFilter(request,response);
-                return;
+                coordinator = (SlotCoordinator)Class.forName(name).getDeclaredConstructor().newInstance();
+            }
+            catch (Exception e)
+            {
+                throw new ServletException("Unable to create slot coordinator: " + name,e);
             }
+        }
+        coordinator.init(filterConfig,_clock);
+        return coordinator;
+    }
+
+    // Takes an initial lease on the cluster-wide slot budget and keeps renewing it in the background
+    private void startSlotLease(FilterConfig filterConfig, SlotCoordinator coordinator)
+    {
+        String nodeId = filterConfig.getInitParameter(INITKEY_NODE_ID);
+        if (nodeId == null)
+        {
+            nodeId = ManagementFactory.getRuntimeMXBean().getName() + "/" + filterConfig.getFilterName() + "@" + this.hashCode();
+        }
+        String leaseTime = filterConfig.getInitParameter(INITKEY_LEASE_TIME);
+        String renewInterval = filterConfig.getInitParameter(INITKEY_LEASE_RENEW_INTERVAL);
+        String fallbackMaxRequests = filterConfig.getInitParameter(INITKEY_FALLBACK_MAX_REQUESTS);
+        _slotLease = new SlotLease(coordinator,nodeId,(leaseTime != null)?Long.parseLong(leaseTime):DEFAULT_LEASE_TIME,
+                (fallbackMaxRequests != null)?Integer.parseInt(fallbackMaxRequests):DEFAULT_FALLBACK_MAX_REQUESTS,_clock);
+        LOGGER.info("_slotLease: " + nodeId + " coordinator=" + coordinator.getClass().getName());
+
+        renewSlotLease();
+        Integer interval = (renewInterval != null)?Integer.parseInt(renewInterval):DEFAULT_LEASE_RENEW_INTERVAL;
+        getTimer().schedule(new TimerTask()
+        {
+
+            @Override
+            public void run()
+            {
+                renewSlotLease();
+            }
+        },interval,interval);
+    }
+
+    /*
+     * Renews the slot lease for the slots this node could use now and resizes the local slots to the grant. The configured limit goes along with the
+     * demand, so the coordinator can leave this node headroom for a burst out of budget that no node is using. Package-private so that tests can renew
+     * in virtual time instead of waiting for the timer.
+     */
+    void renewSlotLease()
+    {
+        _slotLeaseRenewPending.set(false);
+        Integer maxRequests = _config.getMaxRequests();
+        _slotLeaseDemand = getSlotDemand(maxRequests);
+        _slotLease.renew(_slotLeaseDemand,maxRequests);
+        synchronized (_reconfigureLock)
+        {
+            _requestSlots.resize(getEffectiveMaxRequests());
+        }
+        processQueue();
+    }
+
+    // Gets the number of slots this node could use right now: those in use plus the queued requests, within the configured limit
+    private Integer getSlotDemand(Integer maxRequests)
+    {
+        Integer inUse = _requestSlots.getCapacity() - _requestSlots.availablePermits();
+        return Math.max(1,Math.min(maxRequests,inUse + _queueSize));
+    }
 
-            // Is this the request's first pass through?
-            if (continuation.isInitial())
+    // Renews the slot lease ahead of the timer once the queue has grown past the demand last reported, so that a burst is not held to a stale grant
+    private void checkSlotDemand()
+    {
+        if (_slotLease == null || getSlotDemand(_config.getMaxRequests()) <= _slotLeaseDemand || !_slotLeaseRenewPending.compareAndSet(false,true))
+        {
+            return;
+        }
+        try
+        {
+            _timer.schedule(new TimerTask()
             {
-                Integer reqPriority = calcPriority((HttpServletRequest)request);
 
-                // If this request has the magic priority level, process it immediately
-                if (reqPriority == MAGIC_PRIORITY_LEVEL)
+                @Override
+                public void run()
                 {
-                    setRequestServiceTime(continuation);
-                    chain.doFilter(request,response);
-                    return;
+                    renewSlotLease();
                 }
+            },0);
+        }
+        catch (IllegalStateException e)
+        {
+            // The timer is cancelled once the filter is destroyed
+        }
+    }
 
-                // Save some data about the request
-                // setRequestId(continuation);
-                setRequestStartTime(continuation);
-                setRequestOriginalPriority(continuation,reqPriority);
-                setRequestCurrentPriority(continuation,reqPriority);
-                setRequestExpired(continuation,false);
+    // Gets the number of request slots this node may use: the configured limit, capped by its share of the cluster budget if there is one
+    private Integer getEffectiveMaxRequests()
+    {
+        Integer maxRequests = _config.getMaxRequests();
+        if (_slotLease != null)
+        {
+            maxRequests = Math.min(maxRequests,_slotLease.getSlots());
+        }
+        return maxRequests;
+    }
 
-                // Create a continuation and set its timeout
-                continuation.addContinuationListener(_continuationListener);
-                continuation.setTimeout(_REQUEST_PRIORITY_TIMEOUT);
+    // Gets the timer used for background tasks, creating it on first use
+    private Timer getTimer()
+    {
+        if (_timer == null)
+        {
+            _timer = new Timer("QoSFilter " + this.hashCode(),true);
+        }
+        return _timer;
+    }
 
-                // If the queues are empty and a slot is free, dispatch it immediately
-                if (_queueSize < 1 && acquireRequestSlot())
+    /*
+     * Periodically checks a properties file and applies its values on top of the current config whenever it changes. The most recent change wins: a JMX
+     * change holds until the file is next edited and sets the same key, and a key removed from the file keeps its last value rather than reverting to the
+     * init-param.
+     */
+    private void watchConfigFile(final File configFile, Integer pollInterval)
+    {
+        getTimer().schedule(new TimerTask()
+        {
+
+            private long _lastModified = 0; // Modification time of the file when it was last loaded
+
+            @Override
+            public void run()
+            {
+                long lastModified = configFile.lastModified();
+                if (lastModified == 0 || lastModified == _lastModified)
                 {
-                    setRequestServiceTime(continuation);
-                    chain.doFilter(request,response);
                     return;
                 }
-
-                // Queue the request
-                if (!addToQueue(continuation))
+                _lastModified = lastModified;
+                try
                 {
-                    sendExpiredErrorResponse(continuation);
+                    Properties properties = new Properties();
+                    InputStream in = new FileInputStream(configFile);
+                    try
+                    {
+                        properties.load(in);
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                    synchronized (_reconfigureLock)
+                    {
+                        reconfigure(_config.override(properties));
+                    }
+                }
+                catch (Exception e)
+                {
+                    LOGGER.warn("Unable to apply config file " + configFile,e);
                 }
             }
-            else
-            { // Current request has timed out in the queue
-                Integer reqCurrentPriority = getRequestCurrentPriority(continuation);
-
-                /*
-                 * If the request is timed out and its current request priority is already at the highest level, then the request is now expired (wait time >
-                 * _REQUEST_TIMEOUT). Send an error response and flag it as expired (setRequestExpired)
-                 */
-                if (reqCurrentPriority <= MAX_PRIORITY_LEVEL)
+        },0,pollInterval);
+    }
+
+    // Creates one queue per priority level
+    @SuppressWarnings("unchecked")
+    private LinkedBlockingQueue<Suspension>[] createQueues(Integer levels)
+    {
+        LinkedBlockingQueue<Suspension>[] queues = new LinkedBlockingQueue[levels];
+        for (Integer i = 0; i <= (levels - MAX_PRIORITY_LEVEL); i++)
+        {
+            queues[i] = new LinkedBlockingQueue<Suspension>();
+        }
+        return queues;
+    }
+
+    // Replaces the queues with a new set of priority levels, moving queued requests into the closest remaining level
+    private void migrateQueues(Integer levels)
+    {
+        synchronized (_reconfigureLock)
+        {
+            LinkedBlockingQueue<Suspension>[] oldQueues = _requestQueue;
+            LinkedBlockingQueue<Suspension>[] newQueues = createQueues(levels);
+            _requestQueue = newQueues;
+            for (Integer i = 0; i < oldQueues.length; i++)
+            {
+                Suspension continuation;
+                while ((continuation = oldQueues[i].poll()) != null)
                 {
-                    sendExpiredErrorResponse(continuation);
-                    return;
+                    enqueue(newQueues,continuation);
                 }
+            }
+        }
+    }
+
+    // Instantiates the suspension backend named in the config, either a built-in name or a Suspender class name
+    private Suspender createSuspender(String name) throws ServletException
+    {
+        if (SUSPENDER_CONTINUATION.equals(name))
+        {
+            return new ContinuationSuspender();
+        }
+        if (SUSPENDER_BLOCKING.equals(name))
+        {
+            return new BlockingSuspender();
+        }
+        if (SUSPENDER_ASYNC.equals(name))
+        {
+            try
+            {
+                Class.forName(ASYNC_CONTEXT_CLASS);
+            }
+            catch (ClassNotFoundException e)
+            {
+                throw new ServletException("Suspension backend " + name + " needs a Servlet 3 container",e);
+            }
+            name = ASYNC_SUSPENDER_CLASS;
+        }
+        try
+        {
+            return (Suspender)Class.forName(name).getDeclaredConstructor().newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new ServletException("Unable to create suspension backend: " + name,e);
+        }
+    }
+
+    // Instantiates the event sink named in the config, either a built-in name or a QoSEvents class name; Flight Recorder events are skipped on JVMs
+    // without jdk.jfr
+    private QoSEvents createEvents(String name) throws ServletException
+    {
+        if (EVENTS_NONE.equals(name))
+        {
+            return QoSEvents.NONE;
+        }
+        if (EVENTS_JFR.equals(name))
+        {
+            try
+            {
+                Class.forName(JFR_EVENT_CLASS);
+            }
+            catch (ClassNotFoundException e)
+            {
+                LOGGER.info("Flight Recorder not available, QoSFilter events disabled");
+                return QoSEvents.NONE;
+            }
+            name = JFR_EVENTS_CLASS;
+        }
+        try
+        {
+            return (QoSEvents)Class.forName(name).getDeclaredConstructor().newInstance();
+        }
+        catch (Exception e)
+        {
+            throw new ServletException("Unable to create event sink: " + name,e);
+        }
+    }
 
-                // Bump the priority level and save it back the request
-                reqCurrentPriority--;
-                setRequestCurrentPriority(continuation,reqCurrentPriority);
+    @Override
+    public void destroy()
+    {
+        if (_timer != null)
+        {
+            _timer.cancel();
+        }
+        if (_slotLease != null)
+        {
+            _slotLease.release();
+        }
+        if (_events instanceof Closeable)
+        {
+            try
+            {
+                ((Closeable)_events).close();
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("Unable to close QoSFilter event sink",e);
+            }
+        }
+        if (_mbeanName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(_mbeanName);
+            }
+            catch (Exception e)
+            {
+                LOGGER.warn("Unable to unregister QoSFilter MBean",e);
+            }
+        }
+    }
 
-                if (reqCurrentPriority > MAX_PRIORITY_LEVEL)
+    /**
+     * @see Filter#doFilter(ServletRequest, ServletResponse, FilterChain)
+     */
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+    {
+        Suspension continuation = _suspender.getSuspension(request,response);
+        boolean queueProcessed = false;
+        try
+        {
+            // Backends that hold the thread hand the request back here once it is resumed or times out
+            while (handleRequest(continuation,request,response,chain))
+            {
+                // The request was queued, so give it a chance to be picked up before waiting on it
+                processQueue();
+                queueProcessed = true;
+                if (!continuation.awaitRedispatch())
                 {
-                    // Use the standard priority level timeout
-                    continuation.setTimeout(_REQUEST_PRIORITY_TIMEOUT);
+                    break;
                 }
-                else
+                queueProcessed = false;
+            }
+        }
+        finally
+        {
+            if (!queueProcessed)
+            {
+                processQueue();
+            }
+            continuation.endDispatch();
+        }
+    }
+
+    // Runs a single pass of the request through the filter; returns true if the request was suspended in the queue
+    private boolean handleRequest(Suspension continuation, ServletRequest request, ServletResponse response, FilterChain chain) throws IOException,
+            ServletException
+    {
+        QoSConfig config = _config;
+
+        // A request evicted to free up queue memory is answered as soon as it comes back through
+        if (getRequestEvicted(continuation))
+        {
+            sendExpiredErrorResponse(continuation,QoSEvents.REJECT_EVICTED);
+            return false;
+        }
+
+        // If the request is resumed and not timed out, service it
+        if (continuation.isResumed() && !continuation.isExpired())
+        {
+            setRequestServiceTime(continuation);
+            chain.doFilter(request,response);
+            return false;
+        }
+
+        // Is this the request's first pass through?
+        if (continuation.isInitial())
+        {
+            Integer reqPriority = calcPriority((HttpServletRequest)request);
+
+            // If this request has the magic priority level, process it immediately
+            if (reqPriority == MAGIC_PRIORITY_LEVEL)
+            {
+                if (_events.isEnabled())
                 {
-                    // Request is already at highest priority so set timeout to whatever time it has left before expiration
-                    continuation.setTimeout(_REQUEST_TIMEOUT - (System.currentTimeMillis() - getRequestStartTime(continuation)));
+                    _events.admitted(reqPriority,_queueSize);
                 }
+                setRequestServiceTime(continuation);
+                chain.doFilter(request,response);
+                return false;
+            }
 
-                // Requeue the request
-                if (!addToQueue(continuation))
+            // Save some data about the request
+            // setRequestId(continuation);
+            setRequestStartTime(continuation);
+            setRequestOriginalPriority(continuation,reqPriority);
+            setRequestCurrentPriority(continuation,reqPriority);
+            setRequestExpired(continuation,false);
+
+            // Listen for the request's events and set its timeout
+            continuation.addSuspensionListener(_suspensionListener);
+            continuation.setTimeout(config.getRequestPriorityTimeout());
+
+            // If the queues are empty and a slot is free, dispatch it immediately
+            if (_queueSize < 1 && acquireRequestSlot())
+            {
+                if (_events.isEnabled())
                 {
-                    sendExpiredErrorResponse(continuation);
+                    _events.admitted(reqPriority,_queueSize);
                 }
+                setRequestServiceTime(continuation);
+                chain.doFilter(request,response);
+                return false;
+            }
+
+            // Only pay for the size estimate if the byte budget needs it
+            if (config.getMaxQueueBytes() > 0)
+            {
+                setRequestQueueCost(continuation,estimateQueueCost((HttpServletRequest)request));
+            }
+
+            // Queue the request
+            if (!addToQueue(continuation,true))
+            {
+                sendExpiredErrorResponse(continuation,QoSEvents.REJECT_QUEUE_FULL);
+                return false;
             }
+            checkSlotDemand();
+            return true;
         }
-        finally
-        {
-            processQueue();
+        else
+        { // Current request has timed out in the queue
+            Integer reqCurrentPriority = getRequestCurrentPriority(continuation);
+
+            /*
+             * If the request is timed out and its current request priority is already at the highest level, then the request is now expired (wait time >
+             * requesttimeout). Send an error response and flag it as expired (setRequestExpired)
+             */
+            if (reqCurrentPriority <= MAX_PRIORITY_LEVEL)
+            {
+                sendExpiredErrorResponse(continuation,QoSEvents.REJECT_EXPIRED);
+                return false;
+            }
+
+            // Bump the priority level and save it back the request
+            reqCurrentPriority--;
+            setRequestCurrentPriority(continuation,reqCurrentPriority);
+            if (_events.isEnabled())
+            {
+                _events.aged(reqCurrentPriority,getRequestOriginalPriority(continuation),getRequestWaitTime(continuation),_queueSize);
+            }
+
+            if (reqCurrentPriority > MAX_PRIORITY_LEVEL)
+            {
+                // Use the standard priority level timeout
+                continuation.setTimeout(config.getRequestPriorityTimeout());
+            }
+            else
+            {
+                // Request is already at highest priority so set timeout to whatever time it has left before expiration
+                continuation.setTimeout(config.getRequestTimeout() - (_clock.currentTimeMillis() - getRequestStartTime(continuation)));
+            }
+
+            // Requeue the request
+            if (!addToQueue(continuation,false))
+            {
+                sendExpiredErrorResponse(continuation,QoSEvents.REJECT_QUEUE_FULL);
+                return false;
+            }
+            return true;
         }
     }
 
@@ -302,10 +773,14 @@ public class QoSFilter implements Filter
         // Process the queue as long as it has items and slots are available
         while (_queueSize > 0 && acquireRequestSlot())
         {
-            Continuation continuation = getNextQueuedRequest();
+            Suspension continuation = getNextQueuedRequest();
             if (continuation != null && continuation.isSuspended())
             {
                 // Got a request from the queue and request is suspended
+                if (_events.isEnabled())
+                {
+                    _events.resumed(getRequestCurrentPriority(continuation),getRequestOriginalPriority(continuation),getRequestWaitTime(continuation),_queueSize);
+                }
                 continuation.resume();
             }
             else
@@ -317,25 +792,60 @@ public class QoSFilter implements Filter
         }
     }
 
-    // Sends a generic "unavailable" response to the client
-    private void sendExpiredErrorResponse(Continuation continuation)
+    // Sends a generic "unavailable" response to the client; the reason is one of the QoSEvents.REJECT_* values
+    private void sendExpiredErrorResponse(Suspension continuation, String reason)
     {
         setRequestExpired(continuation,true);
+        if (_events.isEnabled())
+        {
+            _events.rejected(getRequestCurrentPriority(continuation),getRequestOriginalPriority(continuation),getRequestWaitTime(continuation),_queueSize,reason);
+        }
+        QoSConfig config = _config;
+        HttpServletResponse response = (HttpServletResponse)continuation.getServletResponse();
         try
         {
-            ((HttpServletResponse)continuation.getServletResponse()).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setIntHeader(HEADER_RETRY_AFTER,calcRetryAfter(config));
+            if (!config.getFastReject())
+            {
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            // Write the pre-rendered body directly rather than going through the container's error page handling
+            byte[] body = config.getRejectBody();
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setContentType(config.getRejectContentType());
+            response.setContentLength(body.length);
+            if (config.getRejectClose())
+            {
+                response.setHeader(HEADER_CONNECTION,"close");
+            }
+            response.getOutputStream().write(body);
         }
         catch (IOException e)
         {
         }
     }
 
+    // Estimates how many seconds a rejected client should wait for the queue ahead of it to drain
+    private Integer calcRetryAfter(QoSConfig config)
+    {
+        // Nothing queued can wait longer than the request timeout, so never suggest more than that
+        Integer maxSeconds = Math.max(1,(config.getRequestTimeout() + 999) / 1000);
+        Float drainRate = _requestRateCounter.getCounter();
+        if (drainRate <= 0)
+        {
+            return maxSeconds;
+        }
+        Integer seconds = (int)Math.ceil((_queueSize + 1) / drainRate);
+        return Math.max(1,Math.min(seconds,maxSeconds));
+    }
+
     // Attempts to get a request slot, returns true if successful
     private boolean acquireRequestSlot()
     {
         try
         {
-            return _requestSlots.tryAcquire(_LOCK_TIMEOUT,TimeUnit.MILLISECONDS);
+            return _requestSlots.tryAcquire(_config.getLockTimeout(),TimeUnit.MILLISECONDS);
         }
         catch (InterruptedException e)
         {
@@ -349,10 +859,26 @@ public class QoSFilter implements Filter
         _requestSlots.release();
     }
 
-    // Adds a request (actually its continuation) to the request queue
-    private boolean addToQueue(Continuation continuation)
+    /*
+     * Adds a request (actually its continuation) to the request queue; package-private for the benchmarks. The per-level limits only apply to arrivals:
+     * they exist to keep one class of new traffic from filling the queue, and a request that was already admitted and has just aged into a busier level
+     * would otherwise be answered with a 503 for having waited, before its request timeout is up. Aged requests still count against maxqueue and the
+     * byte budget, so the overall bounds hold.
+     */
+    boolean addToQueue(Suspension continuation, boolean arrival)
     {
-        if (_queueSize >= _MAX_QUEUE_ITEMS)
+        QoSConfig config = _config;
+        if (_queueSize >= config.getMaxQueueItems())
+        {
+            return false;
+        }
+        LinkedBlockingQueue<Suspension>[] queues = _requestQueue;
+        Integer priority = Math.min(getRequestCurrentPriority(continuation),queues.length);
+        if (arrival && queues[priority - MAX_PRIORITY_LEVEL].size() >= config.getLevelMaxQueueItems(priority))
+        {
+            return false;
+        }
+        if (!reserveQueueBytes(config,priority,getRequestQueueCost(continuation)))
         {
             return false;
         }
@@ -360,45 +886,188 @@ public class QoSFilter implements Filter
         {
             _queueSize++;
         }
-        // Get the request's current priority and add it to the corresponding queue
-        Integer priority = getRequestCurrentPriority(continuation);
-        _requestQueue[priority - MAX_PRIORITY_LEVEL].add(continuation);
+        // Suspend before queueing so the request is never seen in the queue unsuspended by another thread
         continuation.suspend();
+        LinkedBlockingQueue<Suspension> queue = enqueue(queues,continuation);
+        if (_events.isEnabled())
+        {
+            _events.queued(getRequestCurrentPriority(continuation),getRequestOriginalPriority(continuation),getRequestWaitTime(continuation),_queueSize);
+        }
+        // If the levels were reconfigured meanwhile, make sure the request did not land in a retired queue
+        if (queues != _requestQueue)
+        {
+            synchronized (_reconfigureLock)
+            {
+                if (queue.remove(continuation))
+                {
+                    enqueue(_requestQueue,continuation);
+                }
+            }
+        }
 
         return true;
     }
 
-    // Removes a specific request/continuation from the request queue 
-    private void removeFromQueue(Continuation continuation)
+    // Accounts for a request's estimated size in the queue byte budget, evicting lower priority requests if the policy allows; returns false if it does not fit
+    private boolean reserveQueueBytes(QoSConfig config, Integer priority, Long cost)
+    {
+        Long maxQueueBytes = config.getMaxQueueBytes();
+        if (_queueBytes.addAndGet(cost) <= maxQueueBytes || maxQueueBytes <= 0)
+        {
+            return true;
+        }
+        if (config.getEvictOnQueueBytes() && cost <= maxQueueBytes)
+        {
+            synchronized (_reconfigureLock)
+            {
+                // Only evict if the lower levels hold enough to make room; otherwise the victims would be rejected and the request refused anyway
+                if (getQueueBytesBelow(priority) >= _queueBytes.get() - maxQueueBytes)
+                {
+                    while (_queueBytes.get() > maxQueueBytes)
+                    {
+                        Suspension victim = pollLowerPriority(priority);
+                        if (victim == null)
+                        {
+                            break;
+                        }
+                        // The victim is answered with an error on its own dispatch
+                        setRequestEvicted(victim,true);
+                        victim.resume();
+                    }
+                }
+            }
+            if (_queueBytes.get() <= maxQueueBytes)
+            {
+                return true;
+            }
+        }
+        _queueBytes.addAndGet(-cost);
+        return false;
+    }
+
+    // Adds up the estimated size of the requests waiting at levels below the given one
+    private Long getQueueBytesBelow(Integer priority)
+    {
+        LinkedBlockingQueue<Suspension>[] queues = _requestQueue;
+        long bytes = 0;
+        for (Integer i = queues.length - 1; i > priority - MAX_PRIORITY_LEVEL; i--)
+        {
+            for (Suspension continuation : queues[i])
+            {
+                bytes += getRequestQueueCost(continuation);
+            }
+        }
+        return bytes;
+    }
+
+    // Takes the oldest request from the lowest priority level below the given one, or returns null if those levels are empty
+    private Suspension pollLowerPriority(Integer priority)
+    {
+        LinkedBlockingQueue<Suspension>[] queues = _requestQueue;
+        for (Integer i = queues.length - 1; i > priority - MAX_PRIORITY_LEVEL; i--)
+        {
+            Suspension continuation = queues[i].poll();
+            if (continuation != null)
+            {
+                dequeued(continuation);
+                return continuation;
+            }
+        }
+        return null;
+    }
+
+    // Updates the queue totals for a request that has been taken off the queue
+    private void dequeued(Suspension continuation)
+    {
+        synchronized (this)
+        {
+            _queueSize--;
+        }
+        _queueBytes.addAndGet(-getRequestQueueCost(continuation));
+    }
+
+    // Estimates the heap a suspended request retains: a fixed overhead, its headers as UTF-16 strings and its declared body
+    private Long estimateQueueCost(HttpServletRequest request)
+    {
+        long cost = REQUEST_BASE_COST;
+        @SuppressWarnings("rawtypes")
+        Enumeration headerNames = request.getHeaderNames();
+        while (headerNames != null && headerNames.hasMoreElements())
+        {
+            String headerName = (String)headerNames.nextElement();
+            @SuppressWarnings("rawtypes")
+            Enumeration headerValues = request.getHeaders(headerName);
+            while (headerValues != null && headerValues.hasMoreElements())
+            {
+                cost += 2 * (headerName.length() + ((String)headerValues.nextElement()).length());
+            }
+        }
+        if (request.getContentLength() > 0)
+        {
+            cost += request.getContentLength();
+        }
+        return cost;
+    }
+
+    // Adds a request to the queue for its current priority, capping the priority to the levels available; returns the queue used
+    private LinkedBlockingQueue<Suspension> enqueue(LinkedBlockingQueue<Suspension>[] queues, Suspension continuation)
     {
-        // Get the request's current priority and remove it from the corresponding queue
         Integer priority = getRequestCurrentPriority(continuation);
-        // _requestQueue[priority - _MAX_PRIORITY_LEVEL].remove(continuation);
-        if (_requestQueue[priority - MAX_PRIORITY_LEVEL].remove(continuation))
+        if (priority > queues.length)
         {
-            synchronized (this)
+            priority = queues.length;
+            setRequestCurrentPriority(continuation,priority);
+        }
+        LinkedBlockingQueue<Suspension> queue = queues[priority - MAX_PRIORITY_LEVEL];
+        queue.add(continuation);
+        return queue;
+    }
+
+    // Removes a specific request/continuation from the request queue 
+    private void removeFromQueue(Suspension continuation)
+    {
+        LinkedBlockingQueue<Suspension>[] queues = _requestQueue;
+        if (removeFromQueue(queues,continuation))
+        {
+            return;
+        }
+        // If the levels were reconfigured meanwhile, the request may have moved to the new queues; wait for the migration to finish and look there
+        if (queues != _requestQueue)
+        {
+            synchronized (_reconfigureLock)
             {
-                _queueSize--;
+                removeFromQueue(_requestQueue,continuation);
             }
         }
     }
 
-    // Pulls the highest request/continuation from the request queue, and returns null if the queue is empty
-    private Continuation getNextQueuedRequest()
+    // Removes a request from the queue for its current priority in the given set of queues; returns true if it was found there
+    private boolean removeFromQueue(LinkedBlockingQueue<Suspension>[] queues, Suspension continuation)
     {
+        // Get the request's current priority and remove it from the corresponding queue
+        Integer priority = Math.min(getRequestCurrentPriority(continuation),queues.length);
+        if (queues[priority - MAX_PRIORITY_LEVEL].remove(continuation))
+        {
+            dequeued(continuation);
+            return true;
+        }
+        return false;
+    }
+
+    // Pulls the highest request/continuation from the request queue, and returns null if the queue is empty; package-private for the benchmarks
+    Suspension getNextQueuedRequest()
+    {
+        LinkedBlockingQueue<Suspension>[] queues = _requestQueue;
         // Scan the queue array for a queue with items in it
-        for (Integer i = 0; i < _requestQueue.length; i++)
+        for (Integer i = 0; i < queues.length; i++)
         {
-            if (_requestQueue[i].size() > 0)
+            if (queues[i].size() > 0)
             {
-                Continuation continuation = _requestQueue[i].poll();
+                Suspension continuation = queues[i].poll();
                 // If we get a request off the queue, return it
                 if (continuation != null)
                 {
-                    synchronized (this)
-                    {
-                        _queueSize--;
-                    }
+                    dequeued(continuation);
                     if (continuation.isSuspended())
                     {
                         return continuation;
@@ -410,13 +1079,13 @@ public class QoSFilter implements Filter
     }
 
     // Sets an attribute on the request containing the current time
-    private void setRequestStartTime(Continuation continuation)
+    private void setRequestStartTime(Suspension continuation)
     {
-        continuation.setAttribute(_attrKeyRequestStartTime,System.currentTimeMillis());
+        continuation.setAttribute(_attrKeyRequestStartTime,_clock.currentTimeMillis());
     }
 
     // Gets the time at which the request was made; returns 0 if no time has been set
-    private Long getRequestStartTime(Continuation continuation)
+    private Long getRequestStartTime(Suspension continuation)
     {
         if (continuation.getAttribute(_attrKeyRequestStartTime) == null)
         {
@@ -425,14 +1094,20 @@ public class QoSFilter implements Filter
         return (Long)continuation.getAttribute(_attrKeyRequestStartTime);
     }
 
+    // Gets the number of MS since the request came in
+    private Long getRequestWaitTime(Suspension continuation)
+    {
+        return _clock.currentTimeMillis() - getRequestStartTime(continuation);
+    }
+
     // Sets an attribute on the request containing the time at which the request began being serviced
-    private void setRequestServiceTime(Continuation continuation)
+    private void setRequestServiceTime(Suspension continuation)
     {
-        continuation.setAttribute(_attrKeyRequestServiceTime,System.currentTimeMillis());
+        continuation.setAttribute(_attrKeyRequestServiceTime,_clock.currentTimeMillis());
     }
 
     // Gets the time at which the request was serviced; returns 0 if no time has been set
-    private Long getRequestServiceTime(Continuation continuation)
+    private Long getRequestServiceTime(Suspension continuation)
     {
         if (continuation.getAttribute(_attrKeyRequestServiceTime) == null)
         {
@@ -442,13 +1117,13 @@ public class QoSFilter implements Filter
     }
 
     // Sets an attribute on the request containing the original priority level
-    private void setRequestOriginalPriority(Continuation continuation, Integer priority)
+    private void setRequestOriginalPriority(Suspension continuation, Integer priority)
     {
         continuation.setAttribute(_attrKeyOriginalPriority,priority);
     }
 
     // Gets the original priority level of the request; returns 0 if no priority has been set
-    private Integer getRequestOriginalPriority(Continuation continuation)
+    private Integer getRequestOriginalPriority(Suspension continuation)
     {
         if (continuation.getAttribute(_attrKeyOriginalPriority) == null)
         {
@@ -458,13 +1133,13 @@ public class QoSFilter implements Filter
     }
 
     // Sets an attribute on the request containing the current priority level
-    private void setRequestCurrentPriority(Continuation continuation, Integer priority)
+    private void setRequestCurrentPriority(Suspension continuation, Integer priority)
     {
         continuation.setAttribute(_attrKeyCurrentPriority,priority);
     }
 
     // Gets the current priority level of the request; returns 0 if no priority has been set
-    private Integer getRequestCurrentPriority(Continuation continuation)
+    private Integer getRequestCurrentPriority(Suspension continuation)
     {
         if (continuation.getAttribute(_attrKeyCurrentPriority) == null)
         {
@@ -474,13 +1149,45 @@ public class QoSFilter implements Filter
     }
 
     // Sets an attribute on the request representing the expiration state of the request
-    private void setRequestExpired(Continuation continuation, Boolean expired)
+    private void setRequestExpired(Suspension continuation, Boolean expired)
     {
         continuation.setAttribute(_attrKeyExpired,expired);
     }
 
+    // Sets an attribute on the request flagging it as evicted from the queue
+    private void setRequestEvicted(Suspension continuation, Boolean evicted)
+    {
+        continuation.setAttribute(_attrKeyEvicted,evicted);
+    }
+
+    // Gets whether the request was evicted from the queue; returns false if no value has been set
+    private Boolean getRequestEvicted(Suspension continuation)
+    {
+        if (continuation.getAttribute(_attrKeyEvicted) == null)
+        {
+            return false;
+        }
+        return (Boolean)continuation.getAttribute(_attrKeyEvicted);
+    }
+
+    // Sets an attribute on the request containing its estimated size while queued
+    private void setRequestQueueCost(Suspension continuation, Long cost)
+    {
+        continuation.setAttribute(_attrKeyQueueCost,cost);
+    }
+
+    // Gets the estimated size of the request while queued; returns 0 if no size has been set
+    private Long getRequestQueueCost(Suspension continuation)
+    {
+        if (continuation.getAttribute(_attrKeyQueueCost) == null)
+        {
+            return 0L;
+        }
+        return (Long)continuation.getAttribute(_attrKeyQueueCost);
+    }
+
     // Gets the expiration state of the request; returns false if no value has been set
-    private Boolean getRequestExpired(Continuation continuation)
+    private Boolean getRequestExpired(Suspension continuation)
     {
         if (continuation.getAttribute(_attrKeyExpired) == null)
         {
@@ -489,22 +1196,143 @@ public class QoSFilter implements Filter
         return (Boolean)continuation.getAttribute(_attrKeyExpired);
     }
 
-//    private String formatContinuationState(Continuation continuation)
+//    private String formatContinuationState(Suspension continuation)
 //    {
 //        return "ContState: "
 //                // "**" + getRequestId(continuation) + "**"
 //                + " queueSize=" + _queueSize + " slots=" + _requestSlots.availablePermits() + " isInitial=" + continuation.isInitial() + " isExpired="
 //                + continuation.isExpired() + " isResumed=" + continuation.isResumed() + " isSuspended=" + continuation.isSuspended() + " priority="
-//                + getRequestCurrentPriority(continuation) + " start=" + getRequestStartTime(continuation) + " now=" + System.currentTimeMillis();
+//                + getRequestCurrentPriority(continuation) + " start=" + getRequestStartTime(continuation) + " now=" + _clock.currentTimeMillis();
 //    }
 
+    public Integer getMinPriorityLevel()
+    {
+        return _config.getMinPriorityLevel();
+    }
+
+    public void setMinPriorityLevel(Integer minPriorityLevel)
+    {
+        reconfigure(QoSConfig.INITKEY_MIN_PRIORITY_LEVEL,minPriorityLevel);
+    }
+
+    public Integer getMaxRequests()
+    {
+        return _config.getMaxRequests();
+    }
+
+    public void setMaxRequests(Integer maxRequests)
+    {
+        reconfigure(QoSConfig.INITKEY_MAX_REQUESTS,maxRequests);
+    }
+
+    public Integer getMaxQueueItems()
+    {
+        return _config.getMaxQueueItems();
+    }
+
+    public void setMaxQueueItems(Integer maxQueueItems)
+    {
+        reconfigure(QoSConfig.INITKEY_MAX_QUEUE_ITEMS,maxQueueItems);
+    }
+
+    public Integer getLockTimeout()
+    {
+        return _config.getLockTimeout();
+    }
+
+    public void setLockTimeout(Integer lockTimeout)
+    {
+        reconfigure(QoSConfig.INITKEY_LOCK_TIMEOUT,lockTimeout);
+    }
+
+    public Integer getRequestTimeout()
+    {
+        return _config.getRequestTimeout();
+    }
+
+    public void setRequestTimeout(Integer requestTimeout)
+    {
+        reconfigure(QoSConfig.INITKEY_REQUEST_TIMEOUT,requestTimeout);
+    }
+
+    public Integer getRequestPriorityTimeout()
+    {
+        return _config.getRequestPriorityTimeout();
+    }
+
+    public void setRequestPriorityTimeout(Integer requestPriorityTimeout)
+    {
+        reconfigure(QoSConfig.INITKEY_REQUEST_PRIORITY_TIMEOUT,requestPriorityTimeout);
+    }
+
+    public Integer getQueueSize()
+    {
+        return _queueSize;
+    }
+
+    public Long getQueueBytes()
+    {
+        return _queueBytes.get();
+    }
+
+    public String getLevelMaxQueueItems()
+    {
+        return _config.getLevelMaxQueueItems();
+    }
+
+    public void setLevelMaxQueueItems(String levelMaxQueueItems)
+    {
+        synchronized (_reconfigureLock)
+        {
+            reconfigure(_config.override(QoSConfig.INITKEY_LEVEL_MAX_QUEUE_ITEMS,levelMaxQueueItems));
+        }
+    }
+
+    public Long getMaxQueueBytes()
+    {
+        return _config.getMaxQueueBytes();
+    }
+
+    public void setMaxQueueBytes(Long maxQueueBytes)
+    {
+        synchronized (_reconfigureLock)
+        {
+            reconfigure(_config.override(QoSConfig.INITKEY_MAX_QUEUE_BYTES,String.valueOf(maxQueueBytes)));
+        }
+    }
+
+    public String getQueueBytesPolicy()
+    {
+        return _config.getQueueBytesPolicy();
+    }
+
+    public void setQueueBytesPolicy(String queueBytesPolicy)
+    {
+        synchronized (_reconfigureLock)
+        {
+            reconfigure(_config.override(QoSConfig.INITKEY_QUEUE_BYTES_POLICY,queueBytesPolicy));
+        }
+    }
+
+    public Integer getAvailableSlots()
+    {
+        return _requestSlots.availablePermits();
+    }
+
+    public Integer getLeasedSlots()
+    {
+        return (_slotLease != null)?_slotLease.getSlots():-1;
+    }
+
     /**
      * Calculates the initial (original) priority level of incoming request
      * @param request HttpServletRequest the request to calculate a priority on
-     * @return Priority between _MIN_PRIORITY_LEVEL and MAX_PRIORITY_LEVEL, inclusive
+     * @return Priority between the configured minimum priority level and MAX_PRIORITY_LEVEL, inclusive
      */
     public Integer calcPriority(HttpServletRequest request)
     {
+        Integer minPriorityLevel = _config.getMinPriorityLevel();
+
         /*
          * Currently this tries to extract a number from a querystring parameter called "priority". Eventually this will need to consider other properties of
          * the request to get a priority
@@ -519,9 +1347,9 @@ public class QoSFilter implements Filter
                 if (param.getName().equals("priority"))
                 {
                     Integer priority = Integer.parseInt(param.getValue());
-                    if (priority > _MIN_PRIORITY_LEVEL || priority < MAX_PRIORITY_LEVEL)
+                    if (priority > minPriorityLevel || priority < MAX_PRIORITY_LEVEL)
                     {
-                        return _MIN_PRIORITY_LEVEL;
+                        return minPriorityLevel;
                     }
                     return priority;
                 }
@@ -534,7 +1362,7 @@ public class QoSFilter implements Filter
         {
         }
 
-        return _MIN_PRIORITY_LEVEL;
+        return minPriorityLevel;
     }
 
 }
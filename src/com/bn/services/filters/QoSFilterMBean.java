@@ -0,0 +1,90 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+/**
+ * JMX management interface for QoSFilter. Setting an attribute swaps in a new configuration snapshot without redeploying the filter.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public interface QoSFilterMBean
+{
+
+    public Integer getMinPriorityLevel();
+
+    public void setMinPriorityLevel(Integer minPriorityLevel);
+
+    public Integer getMaxRequests();
+
+    public void setMaxRequests(Integer maxRequests);
+
+    public Integer getMaxQueueItems();
+
+    public void setMaxQueueItems(Integer maxQueueItems);
+
+    public Integer getLockTimeout();
+
+    public void setLockTimeout(Integer lockTimeout);
+
+    public Integer getRequestTimeout();
+
+    public void setRequestTimeout(Integer requestTimeout);
+
+    public Integer getRequestPriorityTimeout();
+
+    public void setRequestPriorityTimeout(Integer requestPriorityTimeout);
+
+    /**
+     * @return Per-level queue limits, highest priority first, e.g. "10,,50"; empty entries are unlimited
+     */
+    public String getLevelMaxQueueItems();
+
+    public void setLevelMaxQueueItems(String levelMaxQueueItems);
+
+    /**
+     * @return Estimated heap in bytes the queued requests may retain; 0 if the budget is disabled
+     */
+    public Long getMaxQueueBytes();
+
+    public void setMaxQueueBytes(Long maxQueueBytes);
+
+    /**
+     * @return What happens when the byte budget is exceeded: refuse the new request or evict lower priority ones
+     */
+    public String getQueueBytesPolicy();
+
+    public void setQueueBytesPolicy(String queueBytesPolicy);
+
+    /**
+     * @return Number of requests currently waiting in the queue
+     */
+    public Integer getQueueSize();
+
+    /**
+     * @return Number of request slots currently free (negative while shrinking)
+     */
+    public Integer getAvailableSlots();
+
+    /**
+     * @return Number of slots this node may use under its lease on the cluster-wide budget, or -1 if slots are not coordinated
+     */
+    public Integer getLeasedSlots();
+
+    /**
+     * @return Estimated heap in bytes retained by the requests currently waiting in the queue
+     */
+    public Long getQueueBytes();
+
+}
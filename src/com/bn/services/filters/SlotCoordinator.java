@@ -0,0 +1,59 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import java.io.IOException;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+import com.bn.services.utils.Clock;
+
+/**
+ * Shares a global budget of request slots between the QoSFilter instances of several nodes. Nodes lease a share of the budget and renew it periodically, so
+ * the coordinator is never consulted on a per-request basis.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public interface SlotCoordinator
+{
+
+    /**
+     * Prepares the coordinator from the filter's init-params
+     * @param filterConfig config of the filter using the coordinator
+     * @param clock clock the filter takes its time from, for lease expiry
+     * @throws ServletException if the coordinator cannot be set up
+     */
+    public void init(FilterConfig filterConfig, Clock clock) throws ServletException;
+
+    /**
+     * Leases (or renews the lease of) a share of the global budget for a node
+     * @param nodeId identifies the node across renewals
+     * @param demand number of slots the node could currently use
+     * @param limit most slots the node will ever use; budget no node demands may be granted up to this as headroom for bursts
+     * @param leaseMs number of MS the lease stays valid without being renewed
+     * @return Number of slots granted to the node, never more than its limit
+     * @throws IOException if the coordinator cannot be reached
+     */
+    public Integer lease(String nodeId, Integer demand, Integer limit, Long leaseMs) throws IOException;
+
+    /**
+     * Gives back a node's lease so its share can be handed to other nodes
+     * @param nodeId identifies the node
+     * @throws IOException if the coordinator cannot be reached
+     */
+    public void release(String nodeId) throws IOException;
+
+}
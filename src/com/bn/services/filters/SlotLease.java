@@ -0,0 +1,115 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bn.services.utils.Clock;
+
+/**
+ * A node's cached lease on the global slot budget. The grant is only refreshed by renew(), which is called off the request path; if the coordinator cannot
+ * be reached the last grant is kept until the lease runs out, after which the node drops to a conservative local limit.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class SlotLease
+{
+
+    private final SlotCoordinator _coordinator; // Coordinator the lease is taken from
+    private final String _nodeId; // Identifies this node to the coordinator
+    private final Long _leaseMs; // Number of MS a grant stays valid without renewal
+    private final Integer _fallbackSlots; // Slots used while no valid grant is held
+    private final Clock _clock; // Source of the lease expiry times
+    private volatile Integer _granted; // Slots granted by the last successful renewal
+    private volatile Long _expires = 0L; // Time after which the last grant is no longer trusted
+    private Boolean _fallingBack = false; // Whether the fallback limit is in effect, used to log transitions once
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlotLease.class); // slf4j logger
+
+    /**
+     * @param coordinator coordinator the lease is taken from
+     * @param nodeId identifies this node to the coordinator
+     * @param leaseMs number of MS a grant stays valid without renewal
+     * @param fallbackSlots slots used while no valid grant is held
+     * @param clock source of the lease expiry times
+     */
+    public SlotLease(SlotCoordinator coordinator, String nodeId, Long leaseMs, Integer fallbackSlots, Clock clock)
+    {
+        _coordinator = coordinator;
+        _nodeId = nodeId;
+        _leaseMs = leaseMs;
+        _fallbackSlots = fallbackSlots;
+        _clock = clock;
+        _granted = fallbackSlots;
+    }
+
+    /**
+     * Gets the number of slots this node may use right now
+     * @return The cached grant while it is valid, otherwise the fallback limit
+     */
+    public Integer getSlots()
+    {
+        if (_clock.currentTimeMillis() >= _expires)
+        {
+            return _fallbackSlots;
+        }
+        return _granted;
+    }
+
+    /**
+     * Renews the lease with the coordinator
+     * @param demand number of slots this node could currently use
+     * @param limit most slots this node will ever use
+     */
+    public synchronized void renew(Integer demand, Integer limit)
+    {
+        try
+        {
+            // Ask for the lease to outlive this node's own view of it, so that the coordinator never drops a grant the node still uses
+            _granted = _coordinator.lease(_nodeId,demand,limit,_leaseMs * 2);
+            _expires = _clock.currentTimeMillis() + _leaseMs;
+            if (_fallingBack)
+            {
+                LOGGER.info("Slot coordinator reachable again, granted " + _granted + " slots");
+                _fallingBack = false;
+            }
+        }
+        catch (Exception e)
+        {
+            if (!_fallingBack && _clock.currentTimeMillis() >= _expires)
+            {
+                LOGGER.warn("Slot lease expired and coordinator unreachable, falling back to " + _fallbackSlots + " slots",e);
+                _fallingBack = true;
+            }
+        }
+    }
+
+    /**
+     * Gives the lease back to the coordinator, e.g. when the filter is shut down
+     */
+    public synchronized void release()
+    {
+        _expires = 0L;
+        try
+        {
+            _coordinator.release(_nodeId);
+        }
+        catch (Exception e)
+        {
+            LOGGER.warn("Unable to release slot lease",e);
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Suspension backend used by QoSFilter to park queued requests
+ * @author Chris Winberry | chris@winberry.net
+ */
+public interface Suspender
+{
+
+    /**
+     * Gets the suspension handle for a request, creating it on the request's first pass through the filter
+     * @param request the request being filtered
+     * @param response the response for the request
+     * @return Suspension bound to the request
+     */
+    public Suspension getSuspension(ServletRequest request, ServletResponse response);
+
+}
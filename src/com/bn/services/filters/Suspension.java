@@ -0,0 +1,100 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import javax.servlet.ServletResponse;
+
+/**
+ * Handle on a request that may be suspended in the QoS queue and later resumed. Mirrors the subset of the Jetty continuation API the filter relies on so
+ * that the queueing logic does not depend on a particular suspension mechanism.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public interface Suspension
+{
+
+    /**
+     * @return true if this is the request's first pass through the filter
+     */
+    public boolean isInitial();
+
+    /**
+     * @return true if the request was resumed (as opposed to timing out) since it was last suspended
+     */
+    public boolean isResumed();
+
+    /**
+     * @return true if the request timed out since it was last suspended
+     */
+    public boolean isExpired();
+
+    /**
+     * @return true if the request is currently suspended
+     */
+    public boolean isSuspended();
+
+    /**
+     * Sets the time a suspended request will wait before timing out
+     * @param timeoutMs timeout in milliseconds
+     */
+    public void setTimeout(long timeoutMs);
+
+    /**
+     * Suspends the request. Timeout and completion are reported to the registered listeners.
+     */
+    public void suspend();
+
+    /**
+     * Resumes a suspended request so that it is dispatched through the filter again
+     */
+    public void resume();
+
+    /**
+     * Blocks the calling thread until the suspended request is resumed or times out, if the backend services waiting requests on their own thread
+     * @return true if the caller should run the request through the filter again, false if the container will redispatch it
+     */
+    public boolean awaitRedispatch();
+
+    /**
+     * Signals that the filter is done with the current dispatch of the request
+     */
+    public void endDispatch();
+
+    /**
+     * Registers a listener for timeout and completion events
+     * @param listener the listener to add
+     */
+    public void addSuspensionListener(SuspensionListener listener);
+
+    /**
+     * @return the response associated with the request
+     */
+    public ServletResponse getServletResponse();
+
+    /**
+     * Sets an attribute that is kept for the lifetime of the request
+     * @param name name of the attribute
+     * @param value value of the attribute
+     */
+    public void setAttribute(String name, Object value);
+
+    /**
+     * Gets an attribute previously set on the request
+     * @param name name of the attribute
+     * @return value of the attribute, or null if it has not been set
+     */
+    public Object getAttribute(String name);
+
+}
@@ -0,0 +1,37 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+/**
+ * Receives timeout and completion events for a suspended request
+ * @author Chris Winberry | chris@winberry.net
+ */
+public interface SuspensionListener
+{
+
+    /**
+     * Called once the request has been fully handled
+     * @param suspension the completed request
+     */
+    public void onComplete(Suspension suspension);
+
+    /**
+     * Called when a suspended request times out before being resumed
+     * @param suspension the timed out request
+     */
+    public void onTimeout(Suspension suspension);
+
+}
@@ -0,0 +1,238 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters.async;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import com.bn.services.filters.Suspender;
+import com.bn.services.filters.Suspension;
+import com.bn.services.filters.SuspensionListener;
+
+/**
+ * Suspension backend built directly on the Servlet 3 AsyncContext. Suspended requests release their thread and are resumed with dispatch(), which runs
+ * them through the filter again. Needs a Servlet 3 container; QoSFilter only loads this class when javax.servlet.AsyncContext is present. The filter must be
+ * declared with async-supported and mapped for the ASYNC dispatcher type.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class AsyncContextSuspender implements Suspender
+{
+
+    private final String _attrKeySuspension = "QoSFilter@suspension@" + this.hashCode(); // Suspension handle bound to the request
+
+    /**
+     * @see Suspender#getSuspension(ServletRequest, ServletResponse)
+     */
+    public Suspension getSuspension(ServletRequest request, ServletResponse response)
+    {
+        // Reuse the handle across dispatches so that the queue and listeners see the same object
+        AsyncContextSuspension suspension = (AsyncContextSuspension)request.getAttribute(_attrKeySuspension);
+        if (suspension == null)
+        {
+            suspension = new AsyncContextSuspension(request,response);
+            request.setAttribute(_attrKeySuspension,suspension);
+        }
+        return suspension;
+    }
+
+    // Adapts an AsyncContext to the continuation-like Suspension interface
+    private static class AsyncContextSuspension implements Suspension, AsyncListener
+    {
+
+        private final ServletRequest _request; // Request being filtered, used to start async cycles and for attribute storage
+        private final ServletResponse _response; // Response for the request
+        private final List<SuspensionListener> _listeners = new CopyOnWriteArrayList<SuspensionListener>(); // Registered event listeners
+        private AsyncContext _asyncContext; // Context of the current async cycle; null until the request is first suspended
+        private long _timeout; // Number of MS a suspended request waits before timing out
+        private boolean _initial = true; // Whether the request is still on its first dispatch
+        private boolean _suspended; // Whether the request is waiting to be resumed
+        private boolean _resumed; // Whether the request was resumed since it was last suspended
+        private boolean _expired; // Whether the request timed out since it was last suspended
+        private boolean _redispatchPending; // Whether the current dispatch started an async cycle, so the request is not done when it ends
+
+        public AsyncContextSuspension(ServletRequest request, ServletResponse response)
+        {
+            _request = request;
+            _response = response;
+        }
+
+        public synchronized boolean isInitial()
+        {
+            return _initial;
+        }
+
+        public synchronized boolean isResumed()
+        {
+            return _resumed;
+        }
+
+        public synchronized boolean isExpired()
+        {
+            return _expired;
+        }
+
+        public synchronized boolean isSuspended()
+        {
+            return _suspended;
+        }
+
+        public synchronized void setTimeout(long timeoutMs)
+        {
+            _timeout = timeoutMs;
+        }
+
+        public synchronized void suspend()
+        {
+            _asyncContext = _request.startAsync(_request,_response);
+            _asyncContext.setTimeout(_timeout);
+            // Listeners only last for one async cycle, so register for each one
+            _asyncContext.addListener(this);
+            _suspended = true;
+            _resumed = false;
+            _expired = false;
+            _redispatchPending = true;
+        }
+
+        public void resume()
+        {
+            AsyncContext asyncContext;
+            synchronized (this)
+            {
+                // A request that already timed out is redispatched by the timeout itself
+                if (!_suspended)
+                {
+                    return;
+                }
+                _suspended = false;
+                _resumed = true;
+                _initial = false;
+                asyncContext = _asyncContext;
+            }
+            asyncContext.dispatch();
+        }
+
+        public boolean awaitRedispatch()
+        {
+            // The container redispatches the request once it is resumed or times out
+            return false;
+        }
+
+        public void endDispatch()
+        {
+            synchronized (this)
+            {
+                // This dispatch suspended the request, so it completes on the dispatch that follows its resume or timeout, even if that already happened
+                if (_redispatchPending)
+                {
+                    _redispatchPending = false;
+                    return;
+                }
+            }
+            for (SuspensionListener listener : _listeners)
+            {
+                listener.onComplete(this);
+            }
+        }
+
+        public void addSuspensionListener(SuspensionListener listener)
+        {
+            _listeners.add(listener);
+        }
+
+        public ServletResponse getServletResponse()
+        {
+            return _response;
+        }
+
+        public void setAttribute(String name, Object value)
+        {
+            _request.setAttribute(name,value);
+        }
+
+        public Object getAttribute(String name)
+        {
+            return _request.getAttribute(name);
+        }
+
+        /**
+         * @see AsyncListener#onTimeout(AsyncEvent)
+         */
+        public void onTimeout(AsyncEvent event) throws IOException
+        {
+            synchronized (this)
+            {
+                if (!_suspended)
+                {
+                    return;
+                }
+                _suspended = false;
+                _expired = true;
+                _initial = false;
+            }
+            // Fire outside the lock so that listeners may touch the queue freely
+            for (SuspensionListener listener : _listeners)
+            {
+                listener.onTimeout(this);
+            }
+            // Like an expired continuation, the request goes through the filter again to be aged or rejected
+            event.getAsyncContext().dispatch();
+        }
+
+        /**
+         * @see AsyncListener#onComplete(AsyncEvent)
+         */
+        public void onComplete(AsyncEvent event) throws IOException
+        {
+            // Completion is reported from endDispatch()
+        }
+
+        /**
+         * @see AsyncListener#onError(AsyncEvent)
+         */
+        public void onError(AsyncEvent event) throws IOException
+        {
+            synchronized (this)
+            {
+                if (!_suspended)
+                {
+                    return;
+                }
+                _suspended = false;
+            }
+            // The container ends the request itself (e.g. the client went away), so only take it off the queue
+            for (SuspensionListener listener : _listeners)
+            {
+                listener.onTimeout(this);
+            }
+        }
+
+        /**
+         * @see AsyncListener#onStartAsync(AsyncEvent)
+         */
+        public void onStartAsync(AsyncEvent event) throws IOException
+        {
+        }
+
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters.jfr;
+
+import java.io.Closeable;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import com.bn.services.filters.QoSEvents;
+
+/**
+ * Records QoSFilter decisions as Java Flight Recorder events so they can be lined up with GC, lock and I/O events in the same recording. Needs a JVM
+ * with the jdk.jfr module (JDK 11+, or JDK 8u272+); QoSFilter only loads this class when jdk.jfr is present. While no recording is running,
+ * isEnabled() is a single volatile read and the filter skips the events entirely.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class JfrQoSEvents implements QoSEvents, Closeable
+{
+
+    private final static String CATEGORY = "QoSFilter";
+
+    private volatile boolean _recording; // Whether any flight recording is running
+    private final FlightRecorderListener _listener = new FlightRecorderListener()
+    {
+
+        @Override
+        public void recordingStateChanged(Recording recording)
+        {
+            updateRecording();
+        }
+    };
+
+    /**
+     * Fields shared by every request event
+     */
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static abstract class RequestEvent extends Event
+    {
+
+        @Label("Priority")
+        @Description("Priority level of the request at the time of the event")
+        int priority;
+
+        @Label("Original Priority")
+        @Description("Priority level the request arrived with")
+        int originalPriority;
+
+        @Label("Wait Time")
+        @Description("Time the request had spent queued at the time of the event")
+        @Timespan(Timespan.MILLISECONDS)
+        long waitTime;
+
+        @Label("Queue Depth")
+        @Description("Number of requests queued across all priority levels")
+        int queueDepth;
+
+    }
+
+    @Name("com.bn.services.filters.Admit")
+    @Label("QoS Admit")
+    @Description("Request dispatched without being queued")
+    static class AdmitEvent extends RequestEvent
+    {
+    }
+
+    @Name("com.bn.services.filters.Queue")
+    @Label("QoS Queue")
+    @Description("Request added to the queue, on arrival or after aging")
+    static class QueueEvent extends RequestEvent
+    {
+    }
+
+    @Name("com.bn.services.filters.Age")
+    @Label("QoS Age")
+    @Description("Request bumped up one priority level after its priority timeout")
+    static class AgeEvent extends RequestEvent
+    {
+    }
+
+    @Name("com.bn.services.filters.Resume")
+    @Label("QoS Resume")
+    @Description("Queued request given a slot and resumed")
+    static class ResumeEvent extends RequestEvent
+    {
+    }
+
+    @Name("com.bn.services.filters.Reject")
+    @Label("QoS Reject")
+    @Description("Request answered with a 503")
+    static class RejectEvent extends RequestEvent
+    {
+
+        @Label("Reason")
+        @Description("Why the request was rejected: queue_full, expired or evicted")
+        String reason;
+
+    }
+
+    @Name("com.bn.services.filters.Timeout")
+    @Label("QoS Timeout")
+    @Description("Suspended request timed out and was taken off the queue")
+    static class TimeoutEvent extends RequestEvent
+    {
+    }
+
+    @Name("com.bn.services.filters.Complete")
+    @Label("QoS Complete")
+    @Description("Request finished being serviced after going through admission")
+    static class CompleteEvent extends RequestEvent
+    {
+
+        @Label("Response Time")
+        @Description("Time the request took to be serviced")
+        @Timespan(Timespan.MILLISECONDS)
+        long responseTime;
+
+    }
+
+    public JfrQoSEvents()
+    {
+        FlightRecorder.addListener(_listener);
+        updateRecording();
+    }
+
+    // Tracks whether any recording is running; the events themselves still honour each recording's settings
+    private void updateRecording()
+    {
+        boolean recording = false;
+        if (FlightRecorder.isInitialized())
+        {
+            for (Recording r : FlightRecorder.getFlightRecorder().getRecordings())
+            {
+                if (r.getState() == RecordingState.RUNNING)
+                {
+                    recording = true;
+                    break;
+                }
+            }
+        }
+        _recording = recording;
+    }
+
+    // Fills in the shared fields and commits the event if its type is enabled in a running recording
+    private void commit(RequestEvent event, int priority, int originalPriority, long waitTime, int queueDepth)
+    {
+        if (event.shouldCommit())
+        {
+            event.priority = priority;
+            event.originalPriority = originalPriority;
+            event.waitTime = waitTime;
+            event.queueDepth = queueDepth;
+            event.commit();
+        }
+    }
+
+    /**
+     * Stops tracking the state of recordings, e.g. when the filter is destroyed
+     */
+    public void close()
+    {
+        FlightRecorder.removeListener(_listener);
+        _recording = false;
+    }
+
+    public boolean isEnabled()
+    {
+        return _recording;
+    }
+
+    public void admitted(int priority, int queueDepth)
+    {
+        commit(new AdmitEvent(),priority,priority,0,queueDepth);
+    }
+
+    public void queued(int priority, int originalPriority, long waitTime, int queueDepth)
+    {
+        commit(new QueueEvent(),priority,originalPriority,waitTime,queueDepth);
+    }
+
+    public void aged(int priority, int originalPriority, long waitTime, int queueDepth)
+    {
+        commit(new AgeEvent(),priority,originalPriority,waitTime,queueDepth);
+    }
+
+    public void resumed(int priority, int originalPriority, long waitTime, int queueDepth)
+    {
+        commit(new ResumeEvent(),priority,originalPriority,waitTime,queueDepth);
+    }
+
+    public void rejected(int priority, int originalPriority, long waitTime, int queueDepth, String reason)
+    {
+        RejectEvent event = new RejectEvent();
+        event.reason = reason;
+        commit(event,priority,originalPriority,waitTime,queueDepth);
+    }
+
+    public void timedOut(int priority, int originalPriority, long waitTime, int queueDepth)
+    {
+        commit(new TimeoutEvent(),priority,originalPriority,waitTime,queueDepth);
+    }
+
+    public void completed(int priority, int originalPriority, long waitTime, long responseTime, int queueDepth)
+    {
+        CompleteEvent event = new CompleteEvent();
+        event.responseTime = responseTime;
+        commit(event,priority,originalPriority,waitTime,queueDepth);
+    }
+
+}
@@ -3,18 +3,59 @@ package com.bn.services.servlets;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.Random;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Servlet implementation class Echo
+ * Servlet implementation class Echo. Doubles as a synthetic backend: the latency distribution, CPU burned per request and
+ * response size are set with init-params, and by default it echoes the request after a fixed 100 ms.
  */
 public class Echo extends HttpServlet {
 	private static final long serialVersionUID = 1L;
-       
+
+	// Config keys
+	private static final String INITKEY_LATENCY = "latency"; // fixed, lognormal or bimodal
+	private static final String INITKEY_LATENCY_MS = "latencyms"; // fixed latency, lognormal median or bimodal fast latency
+	private static final String INITKEY_LATENCY_SIGMA = "latencysigma"; // lognormal shape
+	private static final String INITKEY_LATENCY_SLOW_MS = "latencyslowms"; // bimodal slow latency
+	private static final String INITKEY_LATENCY_SLOW_RATIO = "latencyslowratio"; // fraction of bimodal requests that are slow
+	private static final String INITKEY_CPU_BURN_MS = "cpuburnms"; // CPU time to burn per request
+	private static final String INITKEY_RESPONSE_SIZE = "responsesize"; // bytes of synthetic body; negative echoes the request
+
+	private static final int COPY_BUFFER_SIZE = 4096;
+
+	// Copy buffers reused across requests on the same thread
+	private static final ThreadLocal<byte[]> COPY_BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[COPY_BUFFER_SIZE];
+		}
+	};
+
+	// Random sources for the latency distributions, one per thread to avoid contention
+	private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	private String latency = LatencyDistribution.FIXED;
+	private double latencyMs = 100;
+	private double latencySigma = 0.5;
+	private double latencySlowMs = 1000;
+	private double latencySlowRatio = 0.1;
+	private long cpuBurnMs = 0;
+	private int responseSize = -1;
+	private byte[] responseBody; // Shared synthetic body, written as-is by every request
+	private LatencyDistribution latencyDistribution; // Source of the time each request sleeps
+	private volatile long cpuBurnSink; // Last result of burnCpu(), written so the JIT cannot drop the work
+
     /**
      * @see HttpServlet#HttpServlet()
      */
@@ -23,6 +64,33 @@ public class Echo extends HttpServlet {
         // TODO Auto-generated constructor stub
     }
 
+	/**
+	 * @see HttpServlet#init()
+	 */
+	public void init() throws ServletException {
+		latency = getInitParameter(INITKEY_LATENCY, latency);
+		latencyMs = Double.parseDouble(getInitParameter(INITKEY_LATENCY_MS, String.valueOf(latencyMs)));
+		latencySigma = Double.parseDouble(getInitParameter(INITKEY_LATENCY_SIGMA, String.valueOf(latencySigma)));
+		latencySlowMs = Double.parseDouble(getInitParameter(INITKEY_LATENCY_SLOW_MS, String.valueOf(latencySlowMs)));
+		latencySlowRatio = Double.parseDouble(getInitParameter(INITKEY_LATENCY_SLOW_RATIO, String.valueOf(latencySlowRatio)));
+		cpuBurnMs = Long.parseLong(getInitParameter(INITKEY_CPU_BURN_MS, String.valueOf(cpuBurnMs)));
+		responseSize = Integer.parseInt(getInitParameter(INITKEY_RESPONSE_SIZE, String.valueOf(responseSize)));
+		try {
+			latencyDistribution = new LatencyDistribution(latency, latencyMs, latencySigma, latencySlowMs, latencySlowRatio);
+		} catch (IllegalArgumentException e) {
+			throw new ServletException(e.getMessage());
+		}
+		if (responseSize >= 0) {
+			responseBody = new byte[responseSize];
+			Arrays.fill(responseBody, (byte)'x');
+		}
+	}
+
+	private String getInitParameter(String name, String defaultValue) {
+		String value = getInitParameter(name);
+		return (value != null) ? value : defaultValue;
+	}
+
 	/**
 	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
 	 */
@@ -64,30 +132,44 @@ public class Echo extends HttpServlet {
 	}
 
 	protected void doRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		burnCpu();
 		try {
-			Thread.sleep(100);
+			Thread.sleep(nextLatency());
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
 
-		String contextRoot = request.getContextPath();
-//		String sourcePath = request.getRequestURI().substring(contextRoot.length() + "/Echo".length());
-		String sourcePath = request.getRequestURI().substring(contextRoot.length());
 		try {
-			response.setContentType("text/plain");
-			response.getOutputStream().println("Requested path: " + sourcePath + ((request.getQueryString() != null) ? ("?" + request.getQueryString()) : ""));
-			response.getOutputStream().println("-------- Headers --------");
+			OutputStream out = response.getOutputStream();
+			if (responseBody != null) {
+				response.setContentType("application/octet-stream");
+				response.setContentLength(responseBody.length);
+				out.write(responseBody);
+				return;
+			}
+
+			String contextRoot = request.getContextPath();
+//			String sourcePath = request.getRequestURI().substring(contextRoot.length() + "/Echo".length());
+			String sourcePath = request.getRequestURI().substring(contextRoot.length());
+			// Build the preamble up front so it goes out in a single write
+			StringBuilder preamble = new StringBuilder(256);
+			preamble.append("Requested path: ").append(sourcePath);
+			if (request.getQueryString() != null) {
+				preamble.append('?').append(request.getQueryString());
+			}
+			preamble.append("\r\n-------- Headers --------\r\n");
 			@SuppressWarnings("rawtypes")
 			Enumeration headerNames = request.getHeaderNames();
 			while (headerNames.hasMoreElements()) {
 				String headerName = (String)headerNames.nextElement();
-				String headerValue = request.getHeader(headerName);
-				response.getOutputStream().println(headerName + ": " + headerValue);
+				preamble.append(headerName).append(": ").append(request.getHeader(headerName)).append("\r\n");
 			}
-			response.getOutputStream().println("-------- Body --------");
+			preamble.append("-------- Body --------\r\n");
+			response.setContentType("text/plain");
+			out.write(preamble.toString().getBytes("ISO-8859-1"));
 			if (request.getContentLength() > 0) {
 				copyStream(
-						(InputStream)request.getInputStream(), (OutputStream)response.getOutputStream()
+						(InputStream)request.getInputStream(), out
 						);
 			}
 		} catch (IOException e) {
@@ -95,13 +177,30 @@ public class Echo extends HttpServlet {
 		}
 	}
 
-	private void copyStream (InputStream in, OutputStream out) {
-		copyStream(in, out, 4096);
+	// Picks the time to sleep for the current request from the configured distribution
+	private long nextLatency() {
+		return latencyDistribution.nextMs(RANDOM.get());
 	}
 
-	private void copyStream (InputStream in, OutputStream out, int bufferSize) {
+	// Keeps the current thread busy for the configured amount of CPU time
+	private void burnCpu() {
+		if (cpuBurnMs <= 0) {
+			return;
+		}
+		long deadline = System.nanoTime() + cpuBurnMs * 1000000L;
+		long accumulator = 0;
+		while (System.nanoTime() < deadline) {
+			for (int i = 0; i < 1000; i++) {
+				accumulator += i * 31 ^ accumulator;
+			}
+		}
+		// Publishing the result keeps the loop from being optimized away
+		cpuBurnSink = accumulator;
+	}
+
+	private void copyStream (InputStream in, OutputStream out) {
 		int readLen = 0;
-		byte[] copyBuffer = new byte[bufferSize];
+		byte[] copyBuffer = COPY_BUFFER.get();
 
 		try {
 			while ((readLen = in.read(copyBuffer)) > 0) {
@@ -0,0 +1,91 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.servlets;
+
+import java.util.Random;
+
+/**
+ * Distribution of synthetic service times, shared by the Echo servlet and the simulator so that both model the same backend
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class LatencyDistribution
+{
+
+    /**
+     * Every sample is the base latency
+     */
+    public final static String FIXED = "fixed";
+
+    /**
+     * Samples are log-normally distributed around the base latency as the median
+     */
+    public final static String LOGNORMAL = "lognormal";
+
+    /**
+     * Samples are either the base latency or the slow latency, the latter with the slow ratio
+     */
+    public final static String BIMODAL = "bimodal";
+
+    private final String _kind; // One of FIXED, LOGNORMAL or BIMODAL
+    private final double _ms; // Fixed latency, lognormal median or bimodal fast latency
+    private final double _sigma; // Lognormal shape
+    private final double _slowMs; // Bimodal slow latency
+    private final double _slowRatio; // Fraction of bimodal samples that are slow
+
+    /**
+     * @param kind one of FIXED, LOGNORMAL or BIMODAL
+     * @param ms fixed latency, lognormal median or bimodal fast latency
+     * @param sigma lognormal shape
+     * @param slowMs bimodal slow latency
+     * @param slowRatio fraction of bimodal samples that are slow
+     */
+    public LatencyDistribution(String kind, double ms, double sigma, double slowMs, double slowRatio)
+    {
+        if (!FIXED.equals(kind) && !LOGNORMAL.equals(kind) && !BIMODAL.equals(kind))
+        {
+            throw new IllegalArgumentException("Unknown latency distribution: " + kind);
+        }
+        _kind = kind;
+        _ms = ms;
+        _sigma = sigma;
+        _slowMs = slowMs;
+        _slowRatio = slowRatio;
+    }
+
+    /**
+     * Draws a latency
+     * @param random source of randomness, so that callers control seeding and thread confinement
+     * @return Latency in MS, never negative
+     */
+    public long nextMs(Random random)
+    {
+        double ms;
+        if (LOGNORMAL.equals(_kind))
+        {
+            ms = _ms * Math.exp(_sigma * random.nextGaussian());
+        }
+        else if (BIMODAL.equals(_kind))
+        {
+            ms = (random.nextDouble() < _slowRatio)?_slowMs:_ms;
+        }
+        else
+        {
+            ms = _ms;
+        }
+        return Math.max(0,Math.round(ms));
+    }
+
+}
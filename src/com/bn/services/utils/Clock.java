@@ -0,0 +1,42 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.utils;
+
+/**
+ * Source of the current time, so that time-based logic can run against a virtual clock
+ * @author Chris Winberry | chris@winberry.net
+ */
+public interface Clock
+{
+
+    /**
+     * Clock backed by System.currentTimeMillis()
+     */
+    public final static Clock SYSTEM = new Clock()
+    {
+
+        public long currentTimeMillis()
+        {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return Current time in milliseconds
+     */
+    public long currentTimeMillis();
+
+}
@@ -29,23 +29,39 @@ public class RateCounter
     private Integer _sampleSize; // maximum number of samples to tracks
     private Integer _samplePtrStart; // points to the oldest recorded sample in _samples
     private Integer _samplePtrEnd; // points to the newest recorded sample in _samples
+    private Clock _clock; // source of the event times
+    private volatile long _oldestSample; // time of the oldest recorded sample, published for getCounter()
+    private volatile int _sampleCount; // number of recorded samples, published for getCounter()
 
     /**
      * @param sampleSize number of samples to track for calculating rate
      * @param label description of what this counter is tracking
      */
     public RateCounter(Integer sampleSize, String label)
+    {
+        this(sampleSize,label,Clock.SYSTEM);
+    }
+
+    /**
+     * @param sampleSize number of samples to track for calculating rate
+     * @param label description of what this counter is tracking
+     * @param clock source of the event times
+     */
+    public RateCounter(Integer sampleSize, String label, Clock clock)
     {
         if (sampleSize < 1)
         {
             throw new InvalidParameterException("sampleSize must be > 0");
         }
         _label = label;
+        _clock = clock;
         _sampleSize = sampleSize;
         _samples = new Long[_sampleSize];
-        _samples[0] = System.currentTimeMillis();
+        _samples[0] = _clock.currentTimeMillis();
         _samplePtrStart = 0;
         _samplePtrEnd = 0;
+        _oldestSample = _samples[0];
+        _sampleCount = 1;
     }
 
     // Determines of the samples array is fully populated
@@ -64,22 +80,21 @@ public class RateCounter
     }
 
     /**
-     * Gets the current calculated rate
+     * Gets the current calculated rate. The sampled events are spread over the time from the oldest one until now, so the rate decays while no events are
+     * recorded. Does not lock, so it is cheap enough to call on every request.
      * @return Rate of the current set of sampled events
      */
     public Float getCounter()
     {
-        synchronized (this)
+        // Only one of the two fields changes on any given record(), so reading them without the lock gives a consistent enough estimate
+        int sampleCount = _sampleCount;
+        long timeSpan = _clock.currentTimeMillis() - _oldestSample;
+        if (timeSpan <= 0)
         {
-            // Determine timespan from newest and oldest sampled time
-            Long timeSpan = _samples[_samplePtrEnd] - _samples[_samplePtrStart];
-            if (timeSpan == 0)
-            {
-                return new Float(0);
-            }
-            // Rate is timespan devided by current number of recorded samples
-            return (float)(samplesFull()?_sampleSize:(_samplePtrEnd - _samplePtrStart + 1)) / timeSpan * 1000;
+            return 0f;
         }
+        // Rate is the current number of recorded samples divided by the time they span
+        return (float)sampleCount / timeSpan * 1000;
     }
 
     /**
@@ -95,7 +110,9 @@ public class RateCounter
             }
             // Record the new sample
             _samplePtrEnd = (_samplePtrEnd < (_sampleSize - 1))?(_samplePtrEnd + 1):0;
-            _samples[_samplePtrEnd] = System.currentTimeMillis();
+            _samples[_samplePtrEnd] = _clock.currentTimeMillis();
+            _sampleCount = samplesFull()?_sampleSize:(_samplePtrEnd - _samplePtrStart + 1);
+            _oldestSample = _samples[_samplePtrStart];
         }
     }
 
@@ -0,0 +1,84 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.utils;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Semaphore whose total number of permits can be changed while permits are held. Shrinking below the number of outstanding permits leaves the semaphore in
+ * deficit until enough permits are released, so no permit is ever lost or duplicated.
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class ResizableSemaphore extends Semaphore
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private Integer _capacity; // total number of permits managed by the semaphore
+
+    /**
+     * @param capacity initial number of permits
+     * @param fair whether waiting threads are granted permits in FIFO order
+     */
+    public ResizableSemaphore(Integer capacity, Boolean fair)
+    {
+        super(capacity,fair);
+        if (capacity < 0)
+        {
+            throw new InvalidParameterException("capacity must be >= 0");
+        }
+        _capacity = capacity;
+    }
+
+    /**
+     * Gets the total number of permits, including those currently held
+     * @return Number of permits managed by the semaphore
+     */
+    public Integer getCapacity()
+    {
+        synchronized (this)
+        {
+            return _capacity;
+        }
+    }
+
+    /**
+     * Changes the total number of permits
+     * @param capacity the new number of permits
+     */
+    public void resize(Integer capacity)
+    {
+        if (capacity < 0)
+        {
+            throw new InvalidParameterException("capacity must be >= 0");
+        }
+        synchronized (this)
+        {
+            Integer delta = capacity - _capacity;
+            if (delta > 0)
+            {
+                release(delta);
+            }
+            else if (delta < 0)
+            {
+                reducePermits(-delta);
+            }
+            _capacity = capacity;
+        }
+    }
+
+}
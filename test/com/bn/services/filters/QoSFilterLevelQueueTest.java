@@ -0,0 +1,120 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bn.services.filters.Stubs.StubSuspender;
+import com.bn.services.filters.Stubs.StubSuspension;
+
+/**
+ * Checks that the per-level queue limits turn away new arrivals but not requests aging into a full level
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class QoSFilterLevelQueueTest
+{
+
+    private QoSFilter _filter;
+    private final Map<HttpServletRequest,int[]> _statuses = new HashMap<HttpServletRequest,int[]>(); // Status of each request's response, which the filter keeps across passes
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Map<String,String> config = new HashMap<String,String>();
+        config.put("suspension",StubSuspender.class.getName());
+        config.put("events","none");
+        config.put("locktimeout","0");
+        config.put("maxreq","1");
+        config.put("maxqueue","4");
+        config.put("minpriority","5");
+        config.put("levelmaxqueue",",,,2");
+        _filter = new QoSFilter();
+        _filter.init(Stubs.filterConfig(config));
+
+        // Hold the only slot so that everything after it is queued
+        _filter.doFilter(Stubs.request("priority=1"),Stubs.response(),Stubs.NOOP_CHAIN);
+    }
+
+    @After
+    public void tearDown()
+    {
+        _filter.destroy();
+    }
+
+    // Sends a request through the filter and returns the status it was answered with, or 0 if it was queued
+    private int send(HttpServletRequest request) throws Exception
+    {
+        int[] status = _statuses.get(request);
+        if (status == null)
+        {
+            status = new int[1];
+            _statuses.put(request,status);
+        }
+        _filter.doFilter(request,Stubs.response(status),Stubs.NOOP_CHAIN);
+        StubSuspension suspension = Stubs.suspensionOf(request);
+        return (suspension != null && suspension.isSuspended())?0:status[0];
+    }
+
+    @Test
+    public void arrivalAtFullLevelIsRejected() throws Exception
+    {
+        assertEquals(0,send(Stubs.request("priority=4")));
+        assertEquals(0,send(Stubs.request("priority=4")));
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,send(Stubs.request("priority=4")));
+        assertEquals(2,(int)_filter.getQueueSize());
+    }
+
+    @Test
+    public void agingIntoFullLevelStaysQueued() throws Exception
+    {
+        HttpServletRequest aging = Stubs.request("priority=5");
+        assertEquals(0,send(aging));
+        assertEquals(0,send(Stubs.request("priority=4")));
+        assertEquals(0,send(Stubs.request("priority=4")));
+
+        // Level 4 is full, but the request already waited its turn at level 5
+        Stubs.suspensionOf(aging).expire();
+        assertEquals(0,send(aging));
+        assertEquals(3,(int)_filter.getQueueSize());
+    }
+
+    @Test
+    public void agingStillHonorsMaxQueue() throws Exception
+    {
+        HttpServletRequest aging = Stubs.request("priority=5");
+        assertEquals(0,send(aging));
+        assertEquals(0,send(Stubs.request("priority=4")));
+        assertEquals(0,send(Stubs.request("priority=4")));
+        assertEquals(0,send(Stubs.request("priority=3")));
+
+        // While the aged request was off the queue a new arrival took the last place
+        Stubs.suspensionOf(aging).expire();
+        assertEquals(0,send(Stubs.request("priority=3")));
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,send(aging));
+        assertEquals(4,(int)_filter.getQueueSize());
+    }
+
+}
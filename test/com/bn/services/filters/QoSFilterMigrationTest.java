@@ -0,0 +1,145 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.bn.services.filters.Stubs.StubSuspender;
+
+/**
+ * Checks that changing the number of priority levels at runtime keeps every queued request
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class QoSFilterMigrationTest
+{
+
+    private QoSFilter _filter;
+    private final List<Suspension> _queued = new ArrayList<Suspension>(); // Suspensions of the requests queued by the test, in arrival order
+    private final Map<Suspension,Integer> _priorities = new HashMap<Suspension,Integer>(); // Priority each queued request arrived with
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Map<String,String> config = new HashMap<String,String>();
+        config.put("suspension",StubSuspender.class.getName());
+        config.put("events","none");
+        config.put("locktimeout","0");
+        config.put("maxreq","1");
+        config.put("maxqueue","1000");
+        config.put("minpriority","5");
+        _filter = new QoSFilter();
+        _filter.init(Stubs.filterConfig(config));
+
+        // Hold the only slot so that everything after it is queued
+        _filter.doFilter(Stubs.request("priority=1"),Stubs.response(),Stubs.NOOP_CHAIN);
+        for (int i = 0; i < 25; i++)
+        {
+            queue(1 + i % 5);
+        }
+        assertEquals(25,(int)_filter.getQueueSize());
+    }
+
+    @After
+    public void tearDown()
+    {
+        _filter.destroy();
+    }
+
+    private void queue(Integer priority) throws Exception
+    {
+        HttpServletRequest request = Stubs.request("priority=" + priority);
+        _filter.doFilter(request,Stubs.response(),Stubs.NOOP_CHAIN);
+        Suspension suspension = Stubs.suspensionOf(request);
+        assertTrue(suspension.isSuspended());
+        _queued.add(suspension);
+        _priorities.put(suspension,priority);
+    }
+
+    // Takes everything off the queue, checking that it comes off in priority order once priorities are capped to the given number of levels
+    private List<Suspension> drain(Integer levels)
+    {
+        List<Suspension> drained = new ArrayList<Suspension>();
+        Integer lastPriority = 0;
+        Suspension suspension;
+        while ((suspension = _filter.getNextQueuedRequest()) != null)
+        {
+            Integer priority = Math.min(_priorities.get(suspension),levels);
+            assertTrue("priority order",priority >= lastPriority);
+            lastPriority = priority;
+            drained.add(suspension);
+        }
+        assertEquals(0,(int)_filter.getQueueSize());
+        return drained;
+    }
+
+    private void assertAllDrained(List<Suspension> drained)
+    {
+        assertEquals(_queued.size(),drained.size());
+        Set<Suspension> unique = new HashSet<Suspension>(drained);
+        assertEquals(_queued.size(),unique.size());
+        assertTrue(unique.containsAll(_queued));
+    }
+
+    @Test
+    public void fewerLevelsKeepsEveryEntry()
+    {
+        _filter.setMinPriorityLevel(3);
+        assertEquals(25,(int)_filter.getQueueSize());
+        assertAllDrained(drain(3));
+    }
+
+    @Test
+    public void moreLevelsKeepsEveryEntry()
+    {
+        _filter.setMinPriorityLevel(8);
+        assertEquals(25,(int)_filter.getQueueSize());
+        assertAllDrained(drain(8));
+    }
+
+    @Test
+    public void shrinkThenGrowKeepsEveryEntry()
+    {
+        _filter.setMinPriorityLevel(2);
+        _filter.setMinPriorityLevel(6);
+        assertEquals(25,(int)_filter.getQueueSize());
+        // Requests capped to level 2 stay there when the levels grow back
+        assertAllDrained(drain(2));
+    }
+
+    @Test
+    public void timedOutEntryIsFoundAfterMigration()
+    {
+        _filter.setMinPriorityLevel(3);
+        // A timeout removes the request from the level it was migrated to
+        ((Stubs.StubSuspension)_queued.get(4)).expire();
+        assertEquals(24,(int)_filter.getQueueSize());
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.bn.services.filters.Stubs.StubSuspender;
+import com.bn.services.filters.Stubs.StubSuspension;
+
+/**
+ * Checks the queue byte budget: how a request's size is estimated, when the refuse and evict policies turn requests away, and that the accounted bytes
+ * follow requests off the queue
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class QoSFilterQueueBytesTest
+{
+
+    private final static long REQUEST_COST = 2048; // Estimated size of a request without headers or body
+
+    private QoSFilter _filter;
+    private final Map<HttpServletRequest,int[]> _statuses = new HashMap<HttpServletRequest,int[]>(); // Status of each request's response, which the filter keeps across passes
+
+    @After
+    public void tearDown()
+    {
+        _filter.destroy();
+    }
+
+    private void start(Long maxQueueBytes, String policy) throws Exception
+    {
+        Map<String,String> config = new HashMap<String,String>();
+        config.put("suspension",StubSuspender.class.getName());
+        config.put("events","none");
+        config.put("locktimeout","0");
+        config.put("maxreq","1");
+        config.put("maxqueue","100");
+        config.put("maxqueuebytes",String.valueOf(maxQueueBytes));
+        config.put("queuebytespolicy",policy);
+        _filter = new QoSFilter();
+        _filter.init(Stubs.filterConfig(config));
+
+        // Hold the only slot so that everything after it is queued
+        _filter.doFilter(Stubs.request("priority=1"),Stubs.response(),Stubs.NOOP_CHAIN);
+    }
+
+    // Sends a request through the filter and returns the status it was answered with, or 0 if it was queued
+    private int send(HttpServletRequest request) throws Exception
+    {
+        int[] status = _statuses.get(request);
+        if (status == null)
+        {
+            status = new int[1];
+            _statuses.put(request,status);
+        }
+        _filter.doFilter(request,Stubs.response(status),Stubs.NOOP_CHAIN);
+        StubSuspension suspension = Stubs.suspensionOf(request);
+        return (suspension != null && suspension.isSuspended())?0:status[0];
+    }
+
+    // Sends a request of the base size at the given priority
+    private HttpServletRequest send(Integer priority, int expectedStatus) throws Exception
+    {
+        HttpServletRequest request = Stubs.request("priority=" + priority);
+        assertEquals(expectedStatus,send(request));
+        return request;
+    }
+
+    @Test
+    public void costCountsHeadersAndBody() throws Exception
+    {
+        start(1000000L,"refuse");
+        HttpServletRequest request = Stubs.request("priority=3",Collections.singletonMap("X-Test","abc"),1000);
+        assertEquals(0,send(request));
+        // Headers are counted as UTF-16 characters
+        assertEquals(REQUEST_COST + 2 * ("X-Test".length() + "abc".length()) + 1000,(long)_filter.getQueueBytes());
+    }
+
+    @Test
+    public void refuseOverBudget() throws Exception
+    {
+        start(2 * REQUEST_COST + 100,"refuse");
+        send(5,0);
+        send(5,0);
+        // Refusing never makes room, not even for a higher priority
+        send(1,HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        assertEquals(2,(int)_filter.getQueueSize());
+        assertEquals(2 * REQUEST_COST,(long)_filter.getQueueBytes());
+    }
+
+    @Test
+    public void evictOnlyLowerLevels() throws Exception
+    {
+        start(2 * REQUEST_COST + 100,"evict");
+        HttpServletRequest low = send(5,0);
+        HttpServletRequest mid = send(3,0);
+        send(2,0);
+
+        // The lowest waiter made room and is answered on its next pass; the other one keeps its place
+        StubSuspension evicted = Stubs.suspensionOf(low);
+        assertTrue(evicted.isResumed());
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,send(low));
+        assertTrue(Stubs.suspensionOf(mid).isSuspended());
+        assertEquals(2,(int)_filter.getQueueSize());
+        assertEquals(2 * REQUEST_COST,(long)_filter.getQueueBytes());
+    }
+
+    @Test
+    public void neverEvictSameOrHigherLevels() throws Exception
+    {
+        start(2 * REQUEST_COST + 100,"evict");
+        HttpServletRequest first = send(3,0);
+        HttpServletRequest second = send(2,0);
+        send(3,HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        send(4,HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        assertTrue(Stubs.suspensionOf(first).isSuspended());
+        assertTrue(Stubs.suspensionOf(second).isSuspended());
+        assertEquals(2,(int)_filter.getQueueSize());
+        assertEquals(2 * REQUEST_COST,(long)_filter.getQueueBytes());
+    }
+
+    @Test
+    public void evictionThatCannotMakeRoomLeavesQueue() throws Exception
+    {
+        start(2 * REQUEST_COST + 100,"evict");
+        HttpServletRequest high = send(2,0);
+        HttpServletRequest low = send(5,0);
+
+        // The request fits the budget on its own, but evicting the low waiter would free too little for it
+        HttpServletRequest large = Stubs.request("priority=4",Collections.<String,String> emptyMap(),500);
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,send(large));
+        StubSuspension waiter = Stubs.suspensionOf(low);
+        assertTrue(waiter.isSuspended());
+        assertFalse(waiter.isResumed());
+        assertTrue(Stubs.suspensionOf(high).isSuspended());
+        assertEquals(2,(int)_filter.getQueueSize());
+        assertEquals(2 * REQUEST_COST,(long)_filter.getQueueBytes());
+    }
+
+    @Test
+    public void bytesReturnToZero() throws Exception
+    {
+        start(2 * REQUEST_COST + 100,"evict");
+
+        // Drained
+        send(3,0);
+        send(4,0);
+        while (_filter.getNextQueuedRequest() != null)
+        {
+        }
+        assertEquals(0,(long)_filter.getQueueBytes());
+
+        // Timed out
+        HttpServletRequest timedOut = send(1,0);
+        Stubs.suspensionOf(timedOut).expire();
+        assertEquals(0,(long)_filter.getQueueBytes());
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,send(timedOut));
+        assertEquals(0,(long)_filter.getQueueBytes());
+
+        // Evicted, then the request that evicted it timed out
+        HttpServletRequest low = send(5,0);
+        send(5,0);
+        HttpServletRequest high = send(1,0);
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,send(low));
+        assertEquals(2 * REQUEST_COST,(long)_filter.getQueueBytes());
+        Stubs.suspensionOf(high).expire();
+        while (_filter.getNextQueuedRequest() != null)
+        {
+        }
+        assertEquals(0,(int)_filter.getQueueSize());
+        assertEquals(0,(long)_filter.getQueueBytes());
+    }
+
+}
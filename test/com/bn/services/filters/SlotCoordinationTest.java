@@ -0,0 +1,170 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.bn.services.filters.Stubs.StubSuspender;
+import com.bn.services.sim.VirtualClock;
+
+/**
+ * Runs several filters against one LocalSlotCoordinator group in virtual time, checking that the grants stay within the shared budget, converge to a
+ * max-min fair split, and fall back to the local limit once the coordinator is gone for longer than a lease
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class SlotCoordinationTest
+{
+
+    private final static Integer BUDGET = 12;
+    private final static Integer MAX_REQUESTS = 10;
+    private final static Integer FALLBACK_MAX_REQUESTS = 2;
+    private final static Long LEASE_MS = 1000L;
+
+    private final VirtualClock _clock = new VirtualClock();
+    private final String _group = "SlotCoordinationTest@" + System.identityHashCode(this); // Groups outlive the test, so each test gets its own
+    private final List<QoSFilter> _filters = new ArrayList<QoSFilter>();
+
+    @After
+    public void tearDown()
+    {
+        for (QoSFilter filter : _filters)
+        {
+            filter.destroy();
+        }
+    }
+
+    private QoSFilter startFilter(String nodeId) throws Exception
+    {
+        Map<String,String> config = new HashMap<String,String>();
+        config.put("suspension",StubSuspender.class.getName());
+        config.put("events","none");
+        config.put("locktimeout","0");
+        config.put("maxreq",String.valueOf(MAX_REQUESTS));
+        config.put("maxqueue","100");
+        config.put("coordinator","local");
+        config.put("coordinatorgroup",_group);
+        config.put("globalmaxreq",String.valueOf(BUDGET));
+        config.put("nodeid",nodeId);
+        config.put("leasems",String.valueOf(LEASE_MS));
+        config.put("fallbackmaxreq",String.valueOf(FALLBACK_MAX_REQUESTS));
+        // Keep the timer out of the way; the test renews in virtual time
+        config.put("renewms","3600000");
+        QoSFilter filter = new QoSFilter(_clock,null);
+        filter.init(Stubs.filterConfig(config));
+        _filters.add(filter);
+        return filter;
+    }
+
+    // Sends requests that hold their slot, or wait in the queue for one, until the test ends
+    private void load(QoSFilter filter, Integer requests) throws Exception
+    {
+        for (int i = 0; i < requests; i++)
+        {
+            filter.doFilter(Stubs.request("priority=1"),Stubs.response(),Stubs.NOOP_CHAIN);
+        }
+    }
+
+    // Renews every filter's lease a few times over, checking the budget after each renewal
+    private void renewAll()
+    {
+        LocalSlotCoordinator.Group group = LocalSlotCoordinator.getGroup(_group,BUDGET,_clock);
+        for (int round = 0; round < 3; round++)
+        {
+            for (QoSFilter filter : _filters)
+            {
+                filter.renewSlotLease();
+                assertTrue("granted " + group.getGranted(),group.getGranted() <= BUDGET);
+                Integer leased = 0;
+                for (QoSFilter other : _filters)
+                {
+                    leased += other.getLeasedSlots();
+                }
+                assertTrue("leased " + leased,leased <= BUDGET);
+            }
+        }
+    }
+
+    @Test
+    public void grantsConvergeToFairSplit() throws Exception
+    {
+        QoSFilter busy1 = startFilter("busy1");
+        QoSFilter busy2 = startFilter("busy2");
+        QoSFilter light = startFilter("light");
+        load(busy1,20);
+        load(busy2,20);
+        load(light,1);
+        renewAll();
+
+        // Demands of 10, 10 and 1 against 12 slots: the light node gets what it asks for and the busy nodes split the rest
+        assertEquals(1,(int)light.getLeasedSlots());
+        assertEquals(BUDGET - 1,busy1.getLeasedSlots() + busy2.getLeasedSlots());
+        assertTrue(Math.abs(busy1.getLeasedSlots() - busy2.getLeasedSlots()) <= 1);
+        // The light node's request was queued while it held no slots, and is let through once its grant arrives
+        assertEquals(0,(int)light.getQueueSize());
+    }
+
+    @Test
+    public void idleNodesKeepHeadroom() throws Exception
+    {
+        QoSFilter busy = startFilter("busy");
+        QoSFilter idle = startFilter("idle");
+        load(busy,4);
+        renewAll();
+
+        // Demands of 4 and 1 leave 7 slots unused, which are spread as headroom rather than left with nobody
+        assertEquals(7,(int)busy.getLeasedSlots());
+        assertEquals(5,(int)idle.getLeasedSlots());
+    }
+
+    @Test
+    public void unreachableCoordinatorFallsBack() throws Exception
+    {
+        QoSFilter node1 = startFilter("node1");
+        QoSFilter node2 = startFilter("node2");
+        renewAll();
+        assertEquals(BUDGET / 2,(int)node1.getLeasedSlots());
+        assertEquals(BUDGET / 2,(int)node2.getLeasedSlots());
+
+        LocalSlotCoordinator.getGroup(_group,BUDGET,_clock).setAvailable(false);
+        // The last grant is trusted until the lease runs out
+        _clock.advanceTo(LEASE_MS - 1);
+        node1.renewSlotLease();
+        node2.renewSlotLease();
+        assertEquals(BUDGET / 2,(int)node1.getLeasedSlots());
+        assertEquals(BUDGET / 2,(int)node2.getLeasedSlots());
+
+        _clock.advanceTo(LEASE_MS);
+        node1.renewSlotLease();
+        node2.renewSlotLease();
+        assertEquals(FALLBACK_MAX_REQUESTS,node1.getLeasedSlots());
+        assertEquals(FALLBACK_MAX_REQUESTS,node2.getLeasedSlots());
+
+        LocalSlotCoordinator.getGroup(_group,BUDGET,_clock).setAvailable(true);
+        renewAll();
+        assertEquals(BUDGET / 2,(int)node1.getLeasedSlots());
+        assertEquals(BUDGET / 2,(int)node2.getLeasedSlots());
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.bn.services.sim.VirtualClock;
+
+/**
+ * Checks the measured rate of a steady stream of events, and that the rate decays once the events stop
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class RateCounterTest
+{
+
+    @Test
+    public void steadyRate()
+    {
+        VirtualClock clock = new VirtualClock();
+        RateCounter counter = new RateCounter(100,"test",clock);
+        // 50 events per second for 10 seconds
+        for (long now = 20; now <= 10000; now += 20)
+        {
+            clock.advanceTo(now);
+            counter.record();
+        }
+        assertEquals(50,counter.getCounter(),1);
+    }
+
+    @Test
+    public void rateDecaysWhenEventsStop()
+    {
+        VirtualClock clock = new VirtualClock();
+        RateCounter counter = new RateCounter(100,"test",clock);
+        for (long now = 10; now <= 5000; now += 10)
+        {
+            clock.advanceTo(now);
+            counter.record();
+        }
+        assertEquals(100,counter.getCounter(),2);
+
+        // A stalled backend completes nothing, so the rate must fall rather than keep reporting the old one
+        clock.advanceTo(15000);
+        assertTrue(counter.getCounter() < 10);
+        clock.advanceTo(105000);
+        assertTrue(counter.getCounter() < 1);
+    }
+
+    @Test
+    public void newCounterReportsLowRate()
+    {
+        VirtualClock clock = new VirtualClock();
+        clock.advanceTo(1000);
+        RateCounter counter = new RateCounter(100,"test",clock);
+        assertEquals(0,counter.getCounter(),0);
+        clock.advanceTo(2000);
+        assertEquals(1,counter.getCounter(),0.01);
+    }
+
+}
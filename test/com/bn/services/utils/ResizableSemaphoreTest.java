@@ -0,0 +1,111 @@
+/*
+ * ========================================================================
+ * Copyright (c) 2011 Barnes & Noble.com llc
+ * ------------------------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *  http://www.eclipse.org/legal/epl-v10.html
+ * The Apache License v2.0 is available at
+ *   http://www.opensource.org/licenses/apache2.0.php
+ *  You may elect to redistribute this code under either of these licenses.
+ * ========================================================================
+ */
+
+package com.bn.services.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Checks that resizing never loses or duplicates permits, whether or not permits are held at the time
+ * @author Chris Winberry | chris@winberry.net
+ */
+public class ResizableSemaphoreTest
+{
+
+    @Test
+    public void shrinkWithPermitsHeldThenGrowBack()
+    {
+        ResizableSemaphore semaphore = new ResizableSemaphore(5,true);
+        assertEquals(true,semaphore.tryAcquire(4));
+
+        // Shrinking below the held permits leaves the semaphore in deficit
+        semaphore.resize(2);
+        assertEquals(2,(int)semaphore.getCapacity());
+        assertEquals(-2,semaphore.availablePermits());
+        assertEquals(false,semaphore.tryAcquire());
+
+        // Releasing the held permits pays off the deficit before any permit becomes available
+        semaphore.release(2);
+        assertEquals(0,semaphore.availablePermits());
+        semaphore.release(2);
+        assertEquals(2,semaphore.availablePermits());
+
+        semaphore.resize(5);
+        assertEquals(5,semaphore.availablePermits());
+    }
+
+    @Test
+    public void growWithPermitsHeldThenRelease()
+    {
+        ResizableSemaphore semaphore = new ResizableSemaphore(3,false);
+        assertEquals(true,semaphore.tryAcquire(3));
+        semaphore.resize(1);
+        semaphore.release();
+        semaphore.resize(6);
+        assertEquals(4,semaphore.availablePermits());
+        semaphore.release(2);
+        assertEquals(6,semaphore.availablePermits());
+    }
+
+    @Test
+    public void resizeWhileInUse() throws InterruptedException
+    {
+        final ResizableSemaphore semaphore = new ResizableSemaphore(10,true);
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++)
+        {
+            Thread worker = new Thread()
+            {
+
+                @Override
+                public void run()
+                {
+                    while (System.nanoTime() < end)
+                    {
+                        if (semaphore.tryAcquire())
+                        {
+                            Thread.yield();
+                            semaphore.release();
+                        }
+                    }
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        Random random = new Random(1);
+        while (System.nanoTime() < end)
+        {
+            semaphore.resize(random.nextInt(20));
+        }
+        for (Thread worker : workers)
+        {
+            worker.join();
+        }
+
+        // With every permit returned, the available permits must match the capacity exactly
+        semaphore.resize(7);
+        assertEquals(7,semaphore.availablePermits());
+    }
+
+}